@@ -0,0 +1,130 @@
+package pt.unl.fct.di.apdc.firstwebapp.filters;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.gson.Gson;
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
+import jakarta.ws.rs.ext.Provider;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.SessionRenewal;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the Bearer token of every @Secured request once, before the resource method and its
+ * entity are processed. Requests without a valid token are answered here; otherwise the caller is
+ * available to the resource as {@code (UserPrincipal) securityContext.getUserPrincipal()}.
+ * With sliding expiry enabled, stored tokens are also renewed here (see SessionRenewal).
+ */
+@Secured
+@Provider
+@Priority(Priorities.AUTHENTICATION)
+public class AuthenticationFilter implements ContainerRequestFilter {
+
+	private static final Logger LOG = Logger.getLogger(AuthenticationFilter.class.getName());
+	private static final Gson g = new Gson();
+
+	private static final String OPERATION_NAME = "authentication";
+	private static final String AUTH_SCHEME = "Bearer";
+
+	private static final AtomicLong AUTHENTICATED = new AtomicLong();
+	private static final AtomicLong REJECTED = new AtomicLong();
+	private static final AtomicLong TOTAL_NANOS = new AtomicLong();
+
+	@Inject
+	private Datastore datastore;
+
+	public AuthenticationFilter() {}
+
+	private static class TokenSecurityContext implements SecurityContext {
+		private final UserPrincipal principal;
+		private final boolean secure;
+
+		TokenSecurityContext(UserPrincipal principal, boolean secure) {
+			this.principal = principal;
+			this.secure = secure;
+		}
+
+		@Override
+		public Principal getUserPrincipal() {
+			return principal;
+		}
+
+		@Override
+		public boolean isUserInRole(String role) {
+			return role != null && role.equalsIgnoreCase(principal.getRole());
+		}
+
+		@Override
+		public boolean isSecure() {
+			return secure;
+		}
+
+		@Override
+		public String getAuthenticationScheme() {
+			return AUTH_SCHEME;
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		long start = System.nanoTime();
+		try {
+			String tokenID = AuthUtil.extractTokenID(requestContext.getHeaderString(HttpHeaders.AUTHORIZATION));
+			if (tokenID == null) {
+				REJECTED.incrementAndGet();
+				abort(requestContext, Status.BAD_REQUEST, null, "Missing Authorization Bearer token.");
+				return;
+			}
+
+			UserPrincipal principal = AuthUtil.validateToken(datastore, tokenID);
+			if (principal == null) {
+				REJECTED.incrementAndGet();
+				LOG.warning("Request to " + requestContext.getUriInfo().getPath() + " with invalid or expired token: " + tokenID);
+				abort(requestContext, Status.UNAUTHORIZED, tokenID, "Invalid or expired token.");
+				return;
+			}
+
+			principal = SessionRenewal.slide(datastore, principal);
+			AUTHENTICATED.incrementAndGet();
+			boolean secure = requestContext.getSecurityContext() != null && requestContext.getSecurityContext().isSecure();
+			requestContext.setSecurityContext(new TokenSecurityContext(principal, secure));
+		} finally {
+			TOTAL_NANOS.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private static void abort(ContainerRequestContext requestContext, Status status, String tokenID, String message) {
+		OpResult errorResult = new OpResult(OPERATION_NAME, null, tokenID, message);
+		requestContext.abortWith(Response.status(status)
+				.type(MediaType.APPLICATION_JSON + ";charset=utf-8")
+				.entity(g.toJson(errorResult))
+				.build());
+	}
+
+	public static Map<String, Object> metrics() {
+		long authenticated = AUTHENTICATED.get();
+		long rejected = REJECTED.get();
+		long total = authenticated + rejected;
+		Map<String, Object> metrics = new HashMap<>();
+		metrics.put("authenticated", authenticated);
+		metrics.put("rejected", rejected);
+		metrics.put("avgMicros", total == 0 ? 0 : TOTAL_NANOS.get() / total / 1000);
+		return metrics;
+	}
+}
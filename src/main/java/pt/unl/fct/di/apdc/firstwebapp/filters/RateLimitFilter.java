@@ -0,0 +1,247 @@
+package pt.unl.fct.di.apdc.firstwebapp.filters;
+
+import com.google.gson.Gson;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.ws.rs.HttpMethod;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.container.PreMatching;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.ext.Provider;
+import pt.unl.fct.di.apdc.firstwebapp.util.AppConfig;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Token-bucket rate limiting for the heavier endpoints. Every request to a limited path takes a
+ * token from the bucket of its remote IP and, when it carries a Bearer token, from the bucket of
+ * that token; an empty bucket answers 429 with Retry-After. Buckets refill lazily on access and
+ * are updated with compare-and-set, so the hot path takes no lock.
+ *
+ * Limits per path prefix are read from apdc.ratelimit.&lt;rule&gt;.capacity / .refillPerSec (per token)
+ * and .ipCapacity / .ipRefillPerSec (per IP).
+ *
+ * At most apdc.ratelimit.maxKeys buckets are kept. When the map is full, full buckets are dropped
+ * first, then the fullest tenth of the rest; a bucket that is currently throttling its client is
+ * never dropped, so flooding the map with new keys cannot reset anyone's limit. If only throttled
+ * buckets remain, new keys share one overflow bucket per rule and key type until space frees up.
+ */
+@Provider
+@PreMatching
+public class RateLimitFilter implements ContainerRequestFilter {
+
+	private static final Logger LOG = Logger.getLogger(RateLimitFilter.class.getName());
+	private static final Gson g = new Gson();
+
+	private static final String OPERATION_NAME = "rateLimit";
+
+	private static final boolean ENABLED = AppConfig.getBoolean("apdc.ratelimit.enabled", true);
+	private static final int MAX_KEYS = AppConfig.getInt("apdc.ratelimit.maxKeys", 50000);
+
+	private static final Rule[] RULES = {
+			Rule.configured("listusers", "listusers", 20, 2.0, 60, 6.0),
+			Rule.configured("worksheet", "worksheet", 60, 10.0, 200, 30.0),
+			Rule.configured("register", "register", 5, 0.1, 10, 0.2),
+	};
+
+	private static final Map<String, Bucket> BUCKETS = new ConcurrentHashMap<>();
+	private static final AtomicBoolean EVICTING = new AtomicBoolean();
+	// Stands in for the client id of new keys while the map holds only throttled buckets
+	private static final String OVERFLOW_ID = "*overflow";
+
+	@Context
+	private HttpServletRequest request;
+
+	public RateLimitFilter() {}
+
+	private static class Rule {
+		final String name;
+		final String pathPrefix;
+		final long capacity;
+		final double refillPerSec;
+		final long ipCapacity;
+		final double ipRefillPerSec;
+
+		Rule(String name, String pathPrefix, long capacity, double refillPerSec, long ipCapacity, double ipRefillPerSec) {
+			this.name = name;
+			this.pathPrefix = pathPrefix;
+			this.capacity = capacity;
+			this.refillPerSec = refillPerSec;
+			this.ipCapacity = ipCapacity;
+			this.ipRefillPerSec = ipRefillPerSec;
+		}
+
+		static Rule configured(String name, String pathPrefix, long capacity, double refillPerSec,
+							   long ipCapacity, double ipRefillPerSec) {
+			String prefix = "apdc.ratelimit." + name + ".";
+			return new Rule(name, pathPrefix,
+					AppConfig.getLong(prefix + "capacity", capacity),
+					AppConfig.getDouble(prefix + "refillPerSec", refillPerSec),
+					AppConfig.getLong(prefix + "ipCapacity", ipCapacity),
+					AppConfig.getDouble(prefix + "ipRefillPerSec", ipRefillPerSec));
+		}
+
+		boolean matches(String path) {
+			return path.equals(pathPrefix) || path.startsWith(pathPrefix + "/");
+		}
+	}
+
+	// Immutable bucket state; replaced as a whole with compare-and-set
+	private static class State {
+		final double tokens;
+		final long updatedNanos;
+
+		State(double tokens, long updatedNanos) {
+			this.tokens = tokens;
+			this.updatedNanos = updatedNanos;
+		}
+	}
+
+	private static class Bucket {
+		final long capacity;
+		final double refillPerNano;
+		final AtomicReference<State> state;
+
+		Bucket(long capacity, double refillPerSec, long now) {
+			this.capacity = capacity;
+			this.refillPerNano = refillPerSec / 1e9;
+			this.state = new AtomicReference<>(new State(capacity, now));
+		}
+
+		double available(State s, long now) {
+			return Math.min(capacity, s.tokens + (now - s.updatedNanos) * refillPerNano);
+		}
+
+		/**
+		 * Takes one token. Returns 0 on success, otherwise the nanoseconds until a token is available.
+		 */
+		long tryAcquire(long now) {
+			while (true) {
+				State current = state.get();
+				double tokens = available(current, now);
+				if (tokens < 1.0) {
+					return refillPerNano > 0 ? (long) Math.ceil((1.0 - tokens) / refillPerNano) : Long.MAX_VALUE;
+				}
+				if (state.compareAndSet(current, new State(tokens - 1.0, now))) {
+					return 0;
+				}
+			}
+		}
+
+		boolean isFull(long now) {
+			return available(state.get(), now) >= capacity;
+		}
+
+		// Share of capacity currently available; below 1/capacity the bucket is throttling
+		double fill(long now) {
+			return available(state.get(), now) / capacity;
+		}
+
+		boolean isThrottling(long now) {
+			return available(state.get(), now) < 1.0;
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		if (!ENABLED || HttpMethod.OPTIONS.equals(requestContext.getMethod())) {
+			return;
+		}
+		String path = requestContext.getUriInfo().getPath();
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		Rule rule = ruleFor(path);
+		if (rule == null) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		String remoteAddr = request != null ? request.getRemoteAddr() : "unknown";
+		long waitNanos = bucket(rule.name + "|ip:", remoteAddr, rule.ipCapacity, rule.ipRefillPerSec, now).tryAcquire(now);
+		if (waitNanos == 0) {
+			String tokenID = AuthUtil.extractTokenID(requestContext.getHeaderString(HttpHeaders.AUTHORIZATION));
+			if (tokenID != null) {
+				waitNanos = bucket(rule.name + "|token:", tokenID, rule.capacity, rule.refillPerSec, now).tryAcquire(now);
+			}
+		}
+		if (waitNanos == 0) {
+			return;
+		}
+
+		long retryAfterSeconds = Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L);
+		LOG.fine("Rate limit hit on " + path + " from " + remoteAddr);
+		OpResult errorResult = new OpResult(OPERATION_NAME, null, null, "Too many requests. Try again later.");
+		requestContext.abortWith(Response.status(Response.Status.TOO_MANY_REQUESTS)
+				.header("Retry-After", retryAfterSeconds)
+				.type(MediaType.APPLICATION_JSON + ";charset=utf-8")
+				.entity(g.toJson(errorResult))
+				.build());
+	}
+
+	private static Rule ruleFor(String path) {
+		for (Rule rule : RULES) {
+			if (rule.matches(path)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	private static Bucket bucket(String prefix, String id, long capacity, double refillPerSec, long now) {
+		String key = prefix + id;
+		Bucket bucket = BUCKETS.get(key);
+		if (bucket != null) {
+			return bucket;
+		}
+		if (BUCKETS.size() >= MAX_KEYS) {
+			evict(now);
+			if (BUCKETS.size() >= MAX_KEYS) {
+				key = prefix + OVERFLOW_ID;
+			}
+		}
+		return BUCKETS.computeIfAbsent(key, k -> new Bucket(capacity, refillPerSec, now));
+	}
+
+	// Drops full buckets, then the fullest tenth of those not throttling; throttled buckets are kept
+	private static void evict(long now) {
+		if (!EVICTING.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			BUCKETS.values().removeIf(b -> b.isFull(now));
+			if (BUCKETS.size() < MAX_KEYS) {
+				return;
+			}
+			List<Map.Entry<String, Bucket>> candidates = new ArrayList<>();
+			for (Map.Entry<String, Bucket> entry : BUCKETS.entrySet()) {
+				if (!entry.getKey().endsWith(OVERFLOW_ID) && !entry.getValue().isThrottling(now)) {
+					candidates.add(entry);
+				}
+			}
+			candidates.sort(Comparator.comparingDouble((Map.Entry<String, Bucket> e) -> e.getValue().fill(now)).reversed());
+			int toDrop = Math.min(candidates.size(), Math.max(1, MAX_KEYS / 10));
+			for (int i = 0; i < toDrop; i++) {
+				BUCKETS.remove(candidates.get(i).getKey(), candidates.get(i).getValue());
+			}
+			if (BUCKETS.size() >= MAX_KEYS) {
+				LOG.warning("Rate limit key map is full of throttled buckets; new clients share the overflow buckets.");
+			}
+		} finally {
+			EVICTING.set(false);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package pt.unl.fct.di.apdc.firstwebapp.filters;
+
+import jakarta.ws.rs.NameBinding;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks resource methods (or whole resources) that require a valid Bearer token.
+ * AuthenticationFilter runs for them and exposes the caller as a UserPrincipal
+ * through the request's SecurityContext.
+ */
+@NameBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Secured {
+}
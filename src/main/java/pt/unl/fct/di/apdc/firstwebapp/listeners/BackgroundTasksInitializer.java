@@ -0,0 +1,44 @@
+package pt.unl.fct.di.apdc.firstwebapp.listeners;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import pt.unl.fct.di.apdc.firstwebapp.util.DataMigrations;
+import pt.unl.fct.di.apdc.firstwebapp.util.DatastoreProvider;
+import pt.unl.fct.di.apdc.firstwebapp.util.ExpiredTokenSweeper;
+import pt.unl.fct.di.apdc.firstwebapp.util.LoginStatsAggregator;
+import pt.unl.fct.di.apdc.firstwebapp.util.PasswordHasher;
+import pt.unl.fct.di.apdc.firstwebapp.util.TokenRevocationList;
+import pt.unl.fct.di.apdc.firstwebapp.util.TokenSigner;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserLogWriter;
+import pt.unl.fct.di.apdc.firstwebapp.util.WorkSheetStats;
+
+/**
+ * Starts the application's background tasks when the context comes up and stops them on shutdown.
+ */
+@WebListener
+public class BackgroundTasksInitializer implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        if (TokenSigner.isEnabled()) {
+            TokenRevocationList.start(DatastoreProvider.get());
+        }
+        LoginStatsAggregator.start(DatastoreProvider.get());
+        UserLogWriter.start(DatastoreProvider.get());
+        ExpiredTokenSweeper.start(DatastoreProvider.get());
+        WorkSheetStats.start(DatastoreProvider.get());
+        DataMigrations.start(DatastoreProvider.get());
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        DataMigrations.stop();
+        TokenRevocationList.stop();
+        ExpiredTokenSweeper.stop();
+        WorkSheetStats.stop();
+        LoginStatsAggregator.stop(DatastoreProvider.get());
+        UserLogWriter.stop(DatastoreProvider.get());
+        PasswordHasher.shutdown();
+    }
+}
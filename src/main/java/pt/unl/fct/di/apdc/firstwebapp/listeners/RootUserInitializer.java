@@ -2,7 +2,9 @@ package pt.unl.fct.di.apdc.firstwebapp.listeners;
 
 import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.*;
-import org.apache.commons.codec.digest.DigestUtils;
+import pt.unl.fct.di.apdc.firstwebapp.util.DatastoreProvider;
+import pt.unl.fct.di.apdc.firstwebapp.util.PasswordHasher;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserEmailIndex;
 
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
@@ -14,14 +16,12 @@ public class RootUserInitializer implements ServletContextListener {
     private final Datastore datastore;
 
     public RootUserInitializer() {
-        DatastoreOptions options = DatastoreOptions.newBuilder()
-                .setProjectId("projetoadc-456513") // Or your project ID
-                .build();
-        datastore = options.getService();
+        datastore = DatastoreProvider.get();
     }
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
+        DatastoreProvider.warmUp(); // Pay the client bootstrap cost here, not on the first request
         Transaction txn = datastore.newTransaction();
         try {
             Key userKey = datastore.newKeyFactory().setKind("User").newKey("root");
@@ -31,7 +31,7 @@ public class RootUserInitializer implements ServletContextListener {
                         .set("user_name", "root")
                         .set("user_email", "root@example.com")
                         .set("user_phone", "+1234567890")
-                        .set("user_pwd", DigestUtils.sha512Hex("r00tP@ss"))
+                        .set("user_pwd", PasswordHasher.hash("r00tP@ss"))
                         .set("user_role", "ADMIN")
                         .set("user_state", "active")
                         .set("user_profile", "private")
@@ -45,6 +45,7 @@ public class RootUserInitializer implements ServletContextListener {
                         .set("user_creation_time", Timestamp.now())
                         .build();
                 txn.add(user);
+                txn.put(UserEmailIndex.entry(datastore, "root@example.com", "root"));
                 txn.commit();
             }
         } catch (Exception e) {
@@ -2,16 +2,20 @@ package pt.unl.fct.di.apdc.firstwebapp.resources;
 
 import com.google.cloud.datastore.*;
 import com.google.gson.Gson;
-import org.apache.commons.codec.digest.DigestUtils;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
 import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import pt.unl.fct.di.apdc.firstwebapp.util.PasswordHasher;
 import pt.unl.fct.di.apdc.firstwebapp.util.PasswordChangeData;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult; // Import OpResult
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
-import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
 import java.util.logging.Logger;
 
 @Path("/password")
@@ -20,83 +24,94 @@ public class ChangePasswordResource {
 
     private final Gson g = new Gson();
     private static final Logger LOG = Logger.getLogger(ChangePasswordResource.class.getName());
-    private final Datastore datastore = DatastoreOptions.newBuilder().setProjectId("projetoadc-456513").build().getService();
+    @Inject
+    private Datastore datastore;
 
+    private static final String KIND_USER = "User";
     private static final String FIELD_PASSWORD = "user_pwd";
     private static final String OPERATION_NAME = "OP8 - changePassword"; // Operation name
 
     @POST
     @Path("/change")
+    @Secured
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response changePassword(PasswordChangeData data, @HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
+    public Response changePassword(PasswordChangeData data, @Context SecurityContext securityContext) {
 
-        String tokenID = AuthUtil.extractTokenID(authHeader);
-        if (tokenID == null) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Missing Authorization token (Header or Body).");
-            return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
-        }
-
-        LOG.fine("Password change attempt via token: " + tokenID);
+        UserPrincipal user = (UserPrincipal) securityContext.getUserPrincipal();
+        LOG.fine("Password change attempt via token: " + user.getTokenID());
 
         if (data == null || !data.validPasswordChange()) {
             OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Missing parameters, or new passwords do not match.");
             return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
         }
 
-        Entity user = AuthUtil.validateToken(datastore, tokenID);
-        if (user == null) {
-            LOG.warning("Password change request with invalid or expired token: " + tokenID);
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Invalid or expired token.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        String username = user.getKey().getName();
+        String username = user.getUsername();
         LOG.info("Password change initiated for user: " + username);
 
-        Transaction txn = datastore.newTransaction();
+        // The current password is verified and the new one hashed before the transaction opens, so no
+        // PBKDF2 derivation runs while it holds its locks; it only re-reads the user and writes.
+        Transaction txn = null;
         try {
-            Key userKey = user.getKey();
-            Entity transactionalUser = txn.get(userKey);
+            Key userKey = datastore.newKeyFactory().setKind(KIND_USER).newKey(username);
+            Entity user = datastore.get(userKey);
 
-            if (transactionalUser == null) {
-                txn.rollback();
-                LOG.severe("User " + username + " disappeared during password change transaction.");
+            if (user == null) {
+                LOG.severe("User " + username + " disappeared during password change.");
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "User consistency error.");
                 return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(errorResult)).build();
             }
 
-            String storedPasswordHash = transactionalUser.getString(FIELD_PASSWORD);
-            if (!storedPasswordHash.equals(DigestUtils.sha512Hex(data.currentPassword))) {
-                txn.rollback();
+            String storedPasswordHash = user.getString(FIELD_PASSWORD);
+            if (!PasswordHasher.verify(data.currentPassword, storedPasswordHash)) {
                 LOG.warning("Password change failed for user " + username + ": Incorrect current password.");
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Incorrect current password.");
                 return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
             }
 
-            if (storedPasswordHash.equals(DigestUtils.sha512Hex(data.newPassword))) {
-                txn.rollback();
+            // The current password matches the stored hash, so comparing the plain strings is enough
+            if (data.newPassword.equals(data.currentPassword)) {
                 LOG.info("Password change attempt for user " + username + ": New password is the same as the old one.");
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "New password cannot be the same as the current password.");
                 return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
             }
 
-            Entity updatedUser = Entity.newBuilder(transactionalUser)
-                    .set(FIELD_PASSWORD, DigestUtils.sha512Hex(data.newPassword))
+            String newPasswordHash = PasswordHasher.hash(data.newPassword);
+
+            txn = datastore.newTransaction();
+            Entity transactionalUser = txn.get(userKey);
+            if (transactionalUser == null || !storedPasswordHash.equals(transactionalUser.getString(FIELD_PASSWORD))) {
+                txn.rollback();
+                LOG.warning("Password change for user " + username + " raced another change to the password.");
+                OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Password was changed concurrently, please retry.");
+                return Response.status(Status.CONFLICT).entity(g.toJson(errorResult)).build();
+            }
+
+            // Every session of the user, including this one, ends with the old password
+            Entity updatedUser = AuthUtil.bumpTokenGeneration(Entity.newBuilder(transactionalUser), transactionalUser)
+                    .set(FIELD_PASSWORD, newPasswordHash)
                     .build();
 
             txn.put(updatedUser);
             txn.commit();
+            AuthUtil.revokeUserSessions(datastore, username);
 
             LOG.info("Password changed successfully for user: " + username);
             OpResult successResult = new OpResult(OPERATION_NAME, data, null, "Password changed successfully.");
             return Response.ok(g.toJson(successResult)).build();
 
+        } catch (PasswordHasher.BusyException e) {
+            LOG.warning("Password change rejected for user " + username + ": " + e.getMessage());
+            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Server busy, please retry.");
+            return Response.status(Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", PasswordHasher.RETRY_AFTER_SECONDS)
+                    .entity(g.toJson(errorResult)).build();
         } catch (Exception e) {
-            if (txn.isActive()) txn.rollback();
+            if (txn != null && txn.isActive()) txn.rollback();
             LOG.severe("Error during password change for user " + username + ": " + e.getMessage());
             OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Internal server error during password change.");
             return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(errorResult)).build();
         } finally {
-            if (txn.isActive()) txn.rollback();
+            if (txn != null && txn.isActive()) txn.rollback();
         }
     }
 }
\ No newline at end of file
@@ -3,15 +3,16 @@ package pt.unl.fct.di.apdc.firstwebapp.resources;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
-import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.POST;
-import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
 
 import com.google.cloud.datastore.*;
 import com.google.gson.Gson;
@@ -19,6 +20,9 @@ import com.google.gson.Gson;
 import pt.unl.fct.di.apdc.firstwebapp.util.ChangeRoleData; // Uses updated class
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
 import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
 
 @Path("/changerole")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
@@ -26,10 +30,8 @@ public class ChangeRoleResource {
 
     private final Gson g = new Gson();
     private static final Logger LOG = Logger.getLogger(ChangeRoleResource.class.getName());
-    private final Datastore datastore = DatastoreOptions.newBuilder()
-            .setProjectId("projetoadc-456513")
-            .build()
-            .getService();
+    @Inject
+    private Datastore datastore;
 
     private static final String OPERATION_NAME = "OP3 - changeRole";
 
@@ -41,8 +43,9 @@ public class ChangeRoleResource {
 
     @POST
     @Path("/")
+    @Secured
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response changeRole(ChangeRoleData data, @HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
+    public Response changeRole(ChangeRoleData data, @Context SecurityContext securityContext) {
 
         if (data == null || !data.isValid()) {
             LOG.warning("Change role attempt with invalid data or invalid target role.");
@@ -52,24 +55,9 @@ public class ChangeRoleResource {
 
         LOG.fine("Attempting role change: User '" + data.userID1 + "' wants to change user '" + data.userID2 + "' to role '" + data.newRole + "'.");
 
-        String tokenID = AuthUtil.extractTokenID(authHeader);
-        if (tokenID == null) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Missing or invalid token.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        Key tokenKey = datastore.newKeyFactory().setKind(AuthUtil.AUTH_TOKEN_KIND).newKey(tokenID);
-        Entity tokenEntity = datastore.get(tokenKey);
-
-        if (tokenEntity == null) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Token not found.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        long expirationDate = tokenEntity.getLong("expiration_date");
-        if (expirationDate < System.currentTimeMillis()) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Token expired.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        String loggedInUsername = tokenEntity.getString("user_username");
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+        String loggedInUsername = requestingUser.getUsername();
         if (!loggedInUsername.equals(data.userID1)) {
             OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "Unauthorized: Token does not match initiating user.");
             return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
@@ -93,19 +81,20 @@ public class ChangeRoleResource {
             String userOneRole = userOne.getString(FIELD_ROLE);
             String userTwoRole = userTwo.getString(FIELD_ROLE);
 
-            if (!data.authorizeChange(userOneRole, userTwoRole)) {
+            if (!AuthorizationPolicy.canChangeRole(userOneRole, userTwoRole, data.newRole)) {
                 txn.rollback();
                 LOG.warning("Authorization failed: User '" + data.userID1 + "' (Role: " + userOneRole + ") is not authorized to change user '" + data.userID2 + "' (Role: " + userTwoRole + ") to role '" + data.newRole + "'.");
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "User is not authorized to perform this role change.");
                 return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
             }
 
-            Entity updatedUserTwo = Entity.newBuilder(userTwoKey, userTwo)
+            Entity updatedUserTwo = AuthUtil.bumpTokenGeneration(Entity.newBuilder(userTwoKey, userTwo), userTwo)
                     .set(FIELD_ROLE, data.newRole.toUpperCase())
                     .build();
 
             txn.put(updatedUserTwo);
             txn.commit();
+            AuthUtil.revokeUserSessions(datastore, data.userID2);
 
             LOG.info("Successfully changed role of user '" + data.userID2 + "' to '" + data.newRole.toUpperCase() + "' by user '" + data.userID1 + "'.");
             OpResult successResult = new OpResult(OPERATION_NAME, data, tokenID, "Successfully updated role for user: " + data.userID2);
@@ -3,15 +3,16 @@ package pt.unl.fct.di.apdc.firstwebapp.resources;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
-import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.POST;
-import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
 
 import com.google.cloud.datastore.*;
 import com.google.gson.Gson;
@@ -19,6 +20,9 @@ import com.google.gson.Gson;
 import pt.unl.fct.di.apdc.firstwebapp.util.ChangeStateData; // Uses updated class
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
 import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
 
 @Path("/changestate")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
@@ -26,10 +30,8 @@ public class ChangeStateResource {
 
     private final Gson g = new Gson();
     private static final Logger LOG = Logger.getLogger(ChangeStateResource.class.getName());
-    private final Datastore datastore = DatastoreOptions.newBuilder()
-            .setProjectId("projetoadc-456513")
-            .build()
-            .getService();
+    @Inject
+    private Datastore datastore;
 
     private static final String OPERATION_NAME = "OP4 - changeState";
 
@@ -46,8 +48,9 @@ public class ChangeStateResource {
 
     @POST
     @Path("/")
+    @Secured
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response changeState(ChangeStateData data, @HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
+    public Response changeState(ChangeStateData data, @Context SecurityContext securityContext) {
 
         if (data == null || !data.isValid()) {
             LOG.warning("Change state attempt with invalid data (missing userIDs).");
@@ -57,23 +60,9 @@ public class ChangeStateResource {
 
         LOG.fine("Attempting state change: User '" + data.userID1 + "' wants to toggle state for user '" + data.userID2 + "'.");
 
-        String tokenID = AuthUtil.extractTokenID(authHeader);
-        if (tokenID == null) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Missing or invalid token.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        Key tokenKey = datastore.newKeyFactory().setKind(AuthUtil.AUTH_TOKEN_KIND).newKey(tokenID);
-        Entity tokenEntity = datastore.get(tokenKey);
-        if (tokenEntity == null) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Token not found.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        long expirationDate = tokenEntity.getLong("expiration_date");
-        if (expirationDate < System.currentTimeMillis()) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Token expired.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        String loggedInUsername = tokenEntity.getString("user_username");
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+        String loggedInUsername = requestingUser.getUsername();
         if (!loggedInUsername.equals(data.userID1)) {
             OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "Unauthorized: Token does not match initiating user.");
             return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
@@ -103,13 +92,6 @@ public class ChangeStateResource {
             String userOneRole = userOne.getString(FIELD_ROLE);
             String userTwoCurrentState = userTwo.contains(FIELD_STATE) ? userTwo.getString(FIELD_STATE) : STATE_INACTIVE;
 
-            if (!data.authorizeStateChange(userOneRole, userTwoCurrentState)) {
-                txn.rollback();
-                LOG.warning("Authorization failed: User " + data.userID1 + " (Role: " + userOneRole + ") is not authorized to change account state to '" + data.newState + "' from '" + userTwoCurrentState + "'.");
-                OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "User " + data.userID1 + " is not authorized to perform this action on user " + data.userID2 + ".");
-                return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
-            }
-
             // Validate the requested new state
             String requestedNewState = data.newState.trim().toLowerCase();
             if (!requestedNewState.equals(STATE_ACTIVE) &&
@@ -121,12 +103,20 @@ public class ChangeStateResource {
                 return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
             }
 
-            Entity updatedUserTwo = Entity.newBuilder(userTwoKey, userTwo)
+            if (!AuthorizationPolicy.canChangeState(userOneRole, userTwoCurrentState, requestedNewState)) {
+                txn.rollback();
+                LOG.warning("Authorization failed: User " + data.userID1 + " (Role: " + userOneRole + ") is not authorized to change account state to '" + data.newState + "' from '" + userTwoCurrentState + "'.");
+                OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "User " + data.userID1 + " is not authorized to perform this action on user " + data.userID2 + ".");
+                return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
+            }
+
+            Entity updatedUserTwo = AuthUtil.bumpTokenGeneration(Entity.newBuilder(userTwoKey, userTwo), userTwo)
                     .set(FIELD_STATE, requestedNewState)
                     .build();
 
             txn.put(updatedUserTwo);
             txn.commit();
+            AuthUtil.revokeUserSessions(datastore, data.userID2);
 
             LOG.info("Successfully changed state of user '" + data.userID2 + "' to '" + requestedNewState + "' by user '" + data.userID1 + "'.");
             OpResult successResult = new OpResult(OPERATION_NAME, data, tokenID, "Successfully updated state for user: " + data.userID2 + " to " + requestedNewState);
@@ -1,20 +1,56 @@
 package pt.unl.fct.di.apdc.firstwebapp.resources;
 
+import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.Filter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
-import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
-import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import jakarta.ws.rs.core.SecurityContext;
+import jakarta.ws.rs.core.StreamingOutput;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
+import pt.unl.fct.di.apdc.firstwebapp.util.AppConfig;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy;
 import pt.unl.fct.di.apdc.firstwebapp.util.CreateWorkSheetData;
+import pt.unl.fct.di.apdc.firstwebapp.util.DataMigrations;
+import pt.unl.fct.di.apdc.firstwebapp.util.GeoHash;
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
-
+import pt.unl.fct.di.apdc.firstwebapp.util.PageResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.PagedQuery;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
+import pt.unl.fct.di.apdc.firstwebapp.util.WorkSheetDates;
+import pt.unl.fct.di.apdc.firstwebapp.util.WorkSheetHistory;
+import pt.unl.fct.di.apdc.firstwebapp.util.WorkSheetStats;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 @Path("/worksheet")
@@ -23,10 +59,13 @@ public class CreateWorkSheetResource {
 
     private static final Logger LOG = Logger.getLogger(CreateWorkSheetResource.class.getName());
     private final Gson g = new Gson();
-    private final Datastore datastore = DatastoreOptions.newBuilder().setProjectId("projetoadc-456513").build().getService();
+    @Inject
+    private Datastore datastore;
 
     private static final String KIND_WORKSHEET = "WorkSheet";
     private static final String KIND_USER = "User";
+    // Child of the partner's User entity, one per open work sheet adjudicated to them (key name = reference)
+    private static final String KIND_PARTNER_WORK = "PartnerWork";
 
     // Mandatory attributes
     private static final String FIELD_REFERENCE = "reference";
@@ -49,6 +88,10 @@ public class CreateWorkSheetResource {
     private static final String FIELD_WORK_STATUS = "work_status";
     private static final String FIELD_OBSERVATIONS = "observations";
 
+    // Optional location, given at creation; indexed through the geohash_N properties (see GeoHash)
+    private static final String FIELD_LATITUDE = "latitude";
+    private static final String FIELD_LONGITUDE = "longitude";
+
     private static final String WORK_STATUS_NOT_STARTED = "NÃO INICIADO";
     private static final String WORK_STATUS_IN_PROGRESS = "EM CURSO";
     private static final String WORK_STATUS_CONCLUDED = "CONCLUÍDO";
@@ -60,26 +103,53 @@ public class CreateWorkSheetResource {
     private static final String OPERATION_NAME_CREATE = "OP10 - createWorkSheet";
     private static final String OPERATION_NAME_UPDATE_ADJUDICATION = "OP10 - updateAdjudication";
     private static final String OPERATION_NAME_UPDATE_WORK_STATUS = "OP10 - updateWorkStatus";
-
-    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
+    private static final String OPERATION_NAME_LIST = "OP10 - listWorkSheets";
+    private static final String OPERATION_NAME_IMPORT = "OP10 - importWorkSheets";
+    private static final String OPERATION_NAME_INBOX = "OP10 - partnerInbox";
+    private static final String OPERATION_NAME_STATS = "OP10 - workSheetStats";
+    private static final String OPERATION_NAME_HISTORY = "OP10 - workSheetHistory";
+    private static final String OPERATION_NAME_STARTING = "OP10 - workSheetsStarting";
+    private static final String OPERATION_NAME_OVERDUE = "OP10 - overdueWorkSheets";
+    private static final String OPERATION_NAME_NEAR = "OP10 - workSheetsNear";
+
+    private static final String[] OPEN_WORK_STATUSES = {WORK_STATUS_NOT_STARTED, WORK_STATUS_IN_PROGRESS};
+
+    private static final int HISTORY_FLUSH_INTERVAL = 100; // Events written between flushes of the history stream
+
+    private static final String NDJSON = "application/x-ndjson";
+    // Each work sheet is written with its creation event, under the limit of 500 entities per commit
+    private static final int IMPORT_CHUNK_SIZE = 200;
+    private static final int IMPORT_MAX_ITEMS = AppConfig.getInt("apdc.worksheet.importMax", 20000);
+
+    private static final List<String> ADJUDICATION_STATUSES = Arrays.asList(ADJUDICATED, NOT_ADJUDICATED);
+    private static final List<String> WORK_STATUSES = Arrays.asList(WORK_STATUS_NOT_STARTED, WORK_STATUS_IN_PROGRESS, WORK_STATUS_CONCLUDED);
+    private static final List<String> TARGET_TYPES = Arrays.asList(PUBLIC_PROPERTY, PRIVATE_PROPERTY);
+    // Date properties a listing may be ranged on; stored as timestamps at midnight UTC of the date
+    private static final List<String> RANGE_FIELDS = Arrays.asList(FIELD_ADJUDICATION_DATE, FIELD_START_DATE, FIELD_END_DATE);
+
+    private static final String[] PARTNER_WORK_FIELDS = {
+            FIELD_DESCRIPTION, FIELD_TARGET_TYPE, FIELD_ADJUDICATION_STATUS, FIELD_START_DATE, FIELD_END_DATE,
+            FIELD_PARTNER_ACCOUNT, FIELD_WORK_STATUS
+    };
+
+    private static final String[] WORKSHEET_FIELDS = {
+            FIELD_DESCRIPTION, FIELD_TARGET_TYPE, FIELD_ADJUDICATION_STATUS, FIELD_ADJUDICATION_DATE, FIELD_START_DATE,
+            FIELD_END_DATE, FIELD_PARTNER_ACCOUNT, FIELD_ADJUDICATING_ENTITY, FIELD_ENTITY_NIF, FIELD_WORK_STATUS,
+            FIELD_OBSERVATIONS, FIELD_LATITUDE, FIELD_LONGITUDE
+    };
+
+    private static final DateTimeFormatter DATE_FORMATTER = WorkSheetDates.DATE_FORMATTER;
 
     @POST
     @Path("/create")
+    @Secured
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response createWorkSheet(CreateWorkSheetData data, @HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
-        String tokenID = AuthUtil.extractTokenID(authHeader);
-
-        if (tokenID == null) {
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(new OpResult(OPERATION_NAME_CREATE, data, null, "Missing authentication token."))).build();
-        }
+    public Response createWorkSheet(CreateWorkSheetData data, @Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
 
-        Entity requestingUser = AuthUtil.validateToken(datastore, tokenID);
-        if (requestingUser == null) {
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(new OpResult(OPERATION_NAME_CREATE, data, tokenID, "Invalid or expired token."))).build();
-        }
-
-        String userRole = requestingUser.getString("user_role");
-        if (!userRole.equals(ROLE_BACKOFFICE) && !userRole.equals(ROLE_ADMIN)) {
+        String userRole = requestingUser.getRole();
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.CREATE_WORKSHEET, userRole)) {
             return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_CREATE, data, tokenID, "Insufficient permissions. Only BACKOFFICE or ADMIN can create work sheets."))).build();
         }
 
@@ -101,11 +171,15 @@ public class CreateWorkSheetResource {
                     .set(FIELD_DESCRIPTION, data.description)
                     .set(FIELD_TARGET_TYPE, data.targetType)
                     .set(FIELD_ADJUDICATION_STATUS, NOT_ADJUDICATED); // Initially not adjudicated
+            setLocation(builder, data);
+            WorkSheetStats.markCounted(builder);
 
-            txn.put(builder.build());
+            Entity workSheet = builder.build();
+            txn.put(workSheet, WorkSheetHistory.event(datastore, WorkSheetHistory.EVENT_CREATED, requestingUser.getUsername(), null, workSheet));
+            WorkSheetStats.apply(datastore, txn, null, workSheet);
             txn.commit();
 
-            LOG.info("Work sheet created with reference: " + data.reference + " by user: " + requestingUser.getKey().getName());
+            LOG.info("Work sheet created with reference: " + data.reference + " by user: " + requestingUser.getUsername());
             return Response.ok(g.toJson(new OpResult(OPERATION_NAME_CREATE, data, tokenID, "Work sheet created successfully."))).build();
 
         } catch (Exception e) {
@@ -119,21 +193,14 @@ public class CreateWorkSheetResource {
 
     @POST
     @Path("/adjudicate")
+    @Secured
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response updateAdjudication(CreateWorkSheetData data, @HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
-        String tokenID = AuthUtil.extractTokenID(authHeader);
+    public Response updateAdjudication(CreateWorkSheetData data, @Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
 
-        if (tokenID == null) {
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(new OpResult(OPERATION_NAME_UPDATE_ADJUDICATION, data, null, "Missing authentication token."))).build();
-        }
-
-        Entity requestingUser = AuthUtil.validateToken(datastore, tokenID);
-        if (requestingUser == null) {
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(new OpResult(OPERATION_NAME_UPDATE_ADJUDICATION, data, tokenID, "Invalid or expired token."))).build();
-        }
-
-        String userRole = requestingUser.getString("user_role");
-        if (!userRole.equals(ROLE_BACKOFFICE) && !userRole.equals(ROLE_ADMIN)) {
+        String userRole = requestingUser.getRole();
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.ADJUDICATE_WORKSHEET, userRole)) {
             return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_UPDATE_ADJUDICATION, data, tokenID, "Insufficient permissions. Only BACKOFFICE or ADMIN can update adjudication details."))).build();
         }
 
@@ -143,6 +210,14 @@ public class CreateWorkSheetResource {
 
         Transaction txn = datastore.newTransaction();
         try {
+            LocalDate adjudicationDate = LocalDate.parse(data.adjudicationDate.trim(), DATE_FORMATTER);
+            LocalDate startDate = LocalDate.parse(data.startDate.trim(), DATE_FORMATTER);
+            LocalDate endDate = LocalDate.parse(data.endDate.trim(), DATE_FORMATTER);
+            if (startDate.isBefore(adjudicationDate) || endDate.isBefore(startDate)) {
+                txn.rollback();
+                return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(OPERATION_NAME_UPDATE_ADJUDICATION, data, tokenID, "Dates must satisfy adjudication date <= start date <= end date."))).build();
+            }
+
             Key workSheetKey = datastore.newKeyFactory().setKind(KIND_WORKSHEET).newKey(data.reference);
             Entity workSheet = txn.get(workSheetKey);
             if (workSheet == null) {
@@ -164,19 +239,23 @@ public class CreateWorkSheetResource {
 
             Entity.Builder builder = Entity.newBuilder(workSheet)
                     .set(FIELD_ADJUDICATION_STATUS, ADJUDICATED)
-                    .set(FIELD_ADJUDICATION_DATE, data.adjudicationDate)
-                    .set(FIELD_START_DATE, data.startDate)
-                    .set(FIELD_END_DATE, data.endDate)
+                    .set(FIELD_ADJUDICATION_DATE, WorkSheetDates.toTimestamp(adjudicationDate))
+                    .set(FIELD_START_DATE, WorkSheetDates.toTimestamp(startDate))
+                    .set(FIELD_END_DATE, WorkSheetDates.toTimestamp(endDate))
                     .set(FIELD_PARTNER_ACCOUNT, data.partnerAccount)
                     .set(FIELD_ADJUDICATING_ENTITY, data.adjudicatingEntity)
                     .set(FIELD_ENTITY_NIF, data.entityNif)
                     .set(FIELD_WORK_STATUS, WORK_STATUS_NOT_STARTED) // Initial work status
                     .set(FIELD_OBSERVATIONS, data.adjudicationObservations);
+            WorkSheetStats.markCounted(builder);
 
-            txn.put(builder.build());
+            Entity adjudicated = builder.build();
+            txn.put(adjudicated, partnerWork(data.partnerAccount, adjudicated),
+                    WorkSheetHistory.event(datastore, WorkSheetHistory.EVENT_ADJUDICATED, requestingUser.getUsername(), workSheet, adjudicated));
+            WorkSheetStats.apply(datastore, txn, workSheet, adjudicated);
             txn.commit();
 
-            LOG.info("Work sheet with reference: " + data.reference + " adjudicated to partner: " + data.partnerAccount + " by user: " + requestingUser.getKey().getName());
+            LOG.info("Work sheet with reference: " + data.reference + " adjudicated to partner: " + data.partnerAccount + " by user: " + requestingUser.getUsername());
             return Response.ok(g.toJson(new OpResult(OPERATION_NAME_UPDATE_ADJUDICATION, data, tokenID, "Work sheet adjudicated successfully."))).build();
 
         } catch (DateTimeParseException e) {
@@ -193,23 +272,16 @@ public class CreateWorkSheetResource {
 
     @POST
     @Path("/status")
+    @Secured
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response updateWorkStatus(CreateWorkSheetData data, @HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
-        String tokenID = AuthUtil.extractTokenID(authHeader);
+    public Response updateWorkStatus(CreateWorkSheetData data, @Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
 
-        if (tokenID == null) {
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(new OpResult(OPERATION_NAME_UPDATE_WORK_STATUS, data, null, "Missing authentication token."))).build();
-        }
+        String userRole = requestingUser.getRole();
+        String username = requestingUser.getUsername();
 
-        Entity requestingUser = AuthUtil.validateToken(datastore, tokenID);
-        if (requestingUser == null) {
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(new OpResult(OPERATION_NAME_UPDATE_WORK_STATUS, data, tokenID, "Invalid or expired token."))).build();
-        }
-
-        String userRole = requestingUser.getString("user_role");
-        String username = requestingUser.getKey().getName();
-
-        if (!userRole.equals(ROLE_PARTNER)) {
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.UPDATE_WORK_STATUS, userRole)) {
             return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_UPDATE_WORK_STATUS, data, tokenID, "Insufficient permissions. Only PARTNER can update work status."))).build();
         }
 
@@ -236,8 +308,17 @@ public class CreateWorkSheetResource {
             Entity.Builder builder = Entity.newBuilder(workSheet)
                     .set(FIELD_WORK_STATUS, data.workStatus)
                     .set(FIELD_OBSERVATIONS, data.statusObservations != null ? data.statusObservations : workSheet.getString(FIELD_OBSERVATIONS)); // Keep existing if not provided
-
-            txn.put(builder.build());
+            WorkSheetStats.markCounted(builder);
+
+            Entity updated = builder.build();
+            txn.put(updated, WorkSheetHistory.event(datastore, WorkSheetHistory.EVENT_WORK_STATUS, username, workSheet, updated));
+            WorkSheetStats.apply(datastore, txn, workSheet, updated);
+            // Concluded works leave the partner's inbox; reopening one puts it back
+            if (WORK_STATUS_CONCLUDED.equals(data.workStatus)) {
+                txn.delete(partnerWorkKey(username, data.reference));
+            } else {
+                txn.put(partnerWork(username, updated));
+            }
             txn.commit();
 
             LOG.info("Work sheet with reference: " + data.reference + " status updated to: " + data.workStatus + " by partner: " + username);
@@ -252,4 +333,540 @@ public class CreateWorkSheetResource {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Lists work sheets one page at a time. Every filter is optional and becomes a Datastore filter,
+     * so only matching work sheets are read; datastore-indexes.xml declares an index for every
+     * combination of filters with a date range. A date range applies to one
+     * of adjudication_date, start_date or end_date, chosen with dateField, and orders the results by
+     * it. PARTNER users only ever see the work sheets adjudicated to them.
+     */
+    @POST
+    @Path("/list")
+    @Secured
+    public Response listWorkSheets(@Context SecurityContext securityContext,
+                                   @QueryParam("adjudicationStatus") String adjudicationStatus,
+                                   @QueryParam("workStatus") String workStatus,
+                                   @QueryParam("partnerAccount") String partnerAccount,
+                                   @QueryParam("targetType") String targetType,
+                                   @QueryParam("dateField") String dateField,
+                                   @QueryParam("from") String from,
+                                   @QueryParam("to") String to,
+                                   @QueryParam("pageSize") Integer pageSize,
+                                   @QueryParam("cursor") String cursor) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+
+        String userRole = requestingUser.getRole();
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.LIST_WORKSHEETS, userRole)) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_LIST, null, tokenID, "Insufficient permissions to list work sheets."))).build();
+        }
+
+        if (ROLE_PARTNER.equalsIgnoreCase(userRole)) {
+            if (partnerAccount != null && !partnerAccount.equals(requestingUser.getUsername())) {
+                return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_LIST, null, tokenID, "Partners can only list their own work sheets."))).build();
+            }
+            partnerAccount = requestingUser.getUsername();
+        }
+
+        if ((adjudicationStatus != null && !ADJUDICATION_STATUSES.contains(adjudicationStatus)) ||
+                (workStatus != null && !WORK_STATUSES.contains(workStatus)) ||
+                (targetType != null && !TARGET_TYPES.contains(targetType))) {
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(OPERATION_NAME_LIST, null, tokenID, "Invalid filter value."))).build();
+        }
+
+        boolean ranged = from != null || to != null;
+        if (ranged && (dateField == null || !RANGE_FIELDS.contains(dateField))) {
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(OPERATION_NAME_LIST, null, tokenID, "A date range needs dateField set to one of " + RANGE_FIELDS + "."))).build();
+        }
+        Timestamp fromDate;
+        Timestamp toDate;
+        try {
+            fromDate = from == null ? null : WorkSheetDates.toTimestamp(LocalDate.parse(from, DATE_FORMATTER));
+            toDate = to == null ? null : WorkSheetDates.toTimestamp(LocalDate.parse(to, DATE_FORMATTER));
+        } catch (DateTimeParseException e) {
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(OPERATION_NAME_LIST, null, tokenID, "Invalid date format. Please use YYYY-MM-DD."))).build();
+        }
+
+        List<Filter> filters = new ArrayList<>();
+        if (adjudicationStatus != null) filters.add(PropertyFilter.eq(FIELD_ADJUDICATION_STATUS, adjudicationStatus));
+        if (workStatus != null) filters.add(PropertyFilter.eq(FIELD_WORK_STATUS, workStatus));
+        if (partnerAccount != null) filters.add(PropertyFilter.eq(FIELD_PARTNER_ACCOUNT, partnerAccount));
+        if (targetType != null) filters.add(PropertyFilter.eq(FIELD_TARGET_TYPE, targetType));
+        if (fromDate != null) filters.add(PropertyFilter.ge(dateField, fromDate));
+        if (toDate != null) filters.add(PropertyFilter.le(dateField, toDate));
+
+        return pageOfWorkSheets(List.of(workSheetQuery(filters, ranged ? dateField : null)), pageSize, cursor, OPERATION_NAME_LIST, tokenID);
+    }
+
+    /**
+     * Lists the work sheets whose start date falls in the given month (YYYY-MM, the current month
+     * by default), earliest first. PARTNER users only see their own; others may narrow the list to
+     * one partner with partnerAccount.
+     */
+    @POST
+    @Path("/starting")
+    @Secured
+    public Response workSheetsStarting(@Context SecurityContext securityContext,
+                                       @QueryParam("month") String month,
+                                       @QueryParam("partnerAccount") String partnerAccount,
+                                       @QueryParam("pageSize") Integer pageSize,
+                                       @QueryParam("cursor") String cursor) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.LIST_WORKSHEETS, requestingUser.getRole())) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_STARTING, null, tokenID, "Insufficient permissions to list work sheets."))).build();
+        }
+        if (ROLE_PARTNER.equalsIgnoreCase(requestingUser.getRole())) {
+            if (partnerAccount != null && !partnerAccount.equals(requestingUser.getUsername())) {
+                return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_STARTING, null, tokenID, "Partners can only list their own work sheets."))).build();
+            }
+            partnerAccount = requestingUser.getUsername();
+        }
+
+        YearMonth period;
+        try {
+            period = month == null ? YearMonth.now(ZoneOffset.UTC) : YearMonth.parse(month);
+        } catch (DateTimeParseException e) {
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(OPERATION_NAME_STARTING, null, tokenID, "Invalid month. Please use YYYY-MM."))).build();
+        }
+
+        List<Filter> filters = new ArrayList<>();
+        if (partnerAccount != null) filters.add(PropertyFilter.eq(FIELD_PARTNER_ACCOUNT, partnerAccount));
+        filters.add(PropertyFilter.ge(FIELD_START_DATE, WorkSheetDates.toTimestamp(period.atDay(1))));
+        filters.add(PropertyFilter.lt(FIELD_START_DATE, WorkSheetDates.toTimestamp(period.plusMonths(1).atDay(1))));
+
+        return pageOfWorkSheets(List.of(workSheetQuery(filters, FIELD_START_DATE)), pageSize, cursor, OPERATION_NAME_STARTING, tokenID);
+    }
+
+    /**
+     * Lists the work sheets past their end date that are not concluded, most overdue first. The
+     * open statuses are read as one query each (a second inequality, on work_status, is not
+     * possible next to the one on end_date). Scoped to partners like /starting.
+     */
+    @POST
+    @Path("/overdue")
+    @Secured
+    public Response overdueWorkSheets(@Context SecurityContext securityContext,
+                                      @QueryParam("partnerAccount") String partnerAccount,
+                                      @QueryParam("pageSize") Integer pageSize,
+                                      @QueryParam("cursor") String cursor) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.LIST_WORKSHEETS, requestingUser.getRole())) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_OVERDUE, null, tokenID, "Insufficient permissions to list work sheets."))).build();
+        }
+        if (ROLE_PARTNER.equalsIgnoreCase(requestingUser.getRole())) {
+            if (partnerAccount != null && !partnerAccount.equals(requestingUser.getUsername())) {
+                return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_OVERDUE, null, tokenID, "Partners can only list their own work sheets."))).build();
+            }
+            partnerAccount = requestingUser.getUsername();
+        }
+
+        Timestamp today = WorkSheetDates.toTimestamp(LocalDate.now(ZoneOffset.UTC));
+        List<EntityQuery.Builder> segments = new ArrayList<>(OPEN_WORK_STATUSES.length);
+        for (String status : OPEN_WORK_STATUSES) {
+            List<Filter> filters = new ArrayList<>();
+            if (partnerAccount != null) filters.add(PropertyFilter.eq(FIELD_PARTNER_ACCOUNT, partnerAccount));
+            filters.add(PropertyFilter.eq(FIELD_WORK_STATUS, status));
+            filters.add(PropertyFilter.lt(FIELD_END_DATE, today));
+            segments.add(workSheetQuery(filters, FIELD_END_DATE));
+        }
+        return pageOfWorkSheets(segments, pageSize, cursor, OPERATION_NAME_OVERDUE, tokenID);
+    }
+
+    /**
+     * Lists the located work sheets inside a circle (lat, lon, radius in meters) or a bounding box
+     * (minLat, minLon, maxLat, maxLon). The area is read as one equality query per covering
+     * geohash cell, and results outside the exact area are dropped, so a page may hold fewer than
+     * pageSize work sheets while nextCursor is still set.
+     */
+    @POST
+    @Path("/near")
+    @Secured
+    public Response workSheetsNear(@Context SecurityContext securityContext,
+                                   @QueryParam("lat") Double lat, @QueryParam("lon") Double lon,
+                                   @QueryParam("radius") Double radius,
+                                   @QueryParam("minLat") Double minLat, @QueryParam("minLon") Double minLon,
+                                   @QueryParam("maxLat") Double maxLat, @QueryParam("maxLon") Double maxLon,
+                                   @QueryParam("pageSize") Integer pageSize, @QueryParam("cursor") String cursor) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.SEARCH_BY_LOCATION, requestingUser.getRole())) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_NEAR, null, tokenID, "Only BACKOFFICE or ADMIN can search by location."))).build();
+        }
+
+        GeoHash.Area area;
+        List<EntityQuery.Builder> segments = new ArrayList<>();
+        try {
+            area = GeoHash.Area.of(lat, lon, radius, minLat, minLon, maxLat, maxLon);
+            for (String cell : area.cells()) {
+                segments.add(Query.newEntityQueryBuilder().setKind(KIND_WORKSHEET).setFilter(PropertyFilter.eq(area.property(), cell)));
+            }
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(OPERATION_NAME_NEAR, null, tokenID, e.getMessage()))).build();
+        }
+
+        PagedQuery.Page<Entity> page;
+        try {
+            page = PagedQuery.fetch(datastore, segments, PagedQuery.pageSize(pageSize), cursor);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(OPERATION_NAME_NEAR, null, tokenID, "Invalid pagination cursor."))).build();
+        } catch (DatastoreException e) {
+            LOG.severe("Error listing work sheets by location: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(new OpResult(OPERATION_NAME_NEAR, null, tokenID, "Failed to list work sheets."))).build();
+        }
+
+        List<Map<String, Object>> workSheets = new ArrayList<>(page.items.size());
+        for (Entity workSheet : page.items) {
+            if (area.contains(workSheet.getDouble(FIELD_LATITUDE), workSheet.getDouble(FIELD_LONGITUDE))) {
+                workSheets.add(workSheetToMap(workSheet));
+            }
+        }
+        return Response.ok(g.toJson(new PageResult(workSheets, page.nextCursor))).build();
+    }
+
+    private void setLocation(Entity.Builder builder, CreateWorkSheetData data) {
+        if (data.hasLocation()) {
+            builder.set(FIELD_LATITUDE, DoubleValue.newBuilder(data.latitude).setExcludeFromIndexes(true).build())
+                    .set(FIELD_LONGITUDE, DoubleValue.newBuilder(data.longitude).setExcludeFromIndexes(true).build());
+            GeoHash.index(builder, data.latitude, data.longitude);
+        }
+    }
+
+    // All filters ANDed; orderBy names the property of a range filter, which Datastore requires as first sort order
+    private EntityQuery.Builder workSheetQuery(List<Filter> filters, String orderBy) {
+        EntityQuery.Builder query = Query.newEntityQueryBuilder().setKind(KIND_WORKSHEET);
+        if (filters.size() == 1) {
+            query.setFilter(filters.get(0));
+        } else if (filters.size() > 1) {
+            query.setFilter(CompositeFilter.and(filters.get(0), filters.subList(1, filters.size()).toArray(new Filter[0])));
+        }
+        if (orderBy != null) {
+            query.setOrderBy(OrderBy.asc(orderBy));
+        }
+        return query;
+    }
+
+    private Response pageOfWorkSheets(List<EntityQuery.Builder> segments, Integer pageSize, String cursor,
+                                      String operation, String tokenID) {
+        PagedQuery.Page<Entity> page;
+        try {
+            page = PagedQuery.fetch(datastore, segments, PagedQuery.pageSize(pageSize), cursor);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(operation, null, tokenID, "Invalid pagination cursor."))).build();
+        } catch (DatastoreException e) {
+            LOG.severe("Error listing work sheets: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(new OpResult(operation, null, tokenID, "Failed to list work sheets."))).build();
+        }
+
+        List<Map<String, Object>> workSheets = new ArrayList<>(page.items.size());
+        for (Entity workSheet : page.items) {
+            workSheets.add(workSheetToMap(workSheet));
+        }
+        return Response.ok(g.toJson(new PageResult(workSheets, page.nextCursor))).build();
+    }
+
+    private Map<String, Object> workSheetToMap(Entity workSheet) {
+        Map<String, Object> map = new HashMap<>();
+        map.put(FIELD_REFERENCE, workSheet.getKey().getName());
+        for (String field : WORKSHEET_FIELDS) {
+            if (!workSheet.contains(field) || workSheet.isNull(field)) {
+                continue;
+            }
+            Value<?> value = workSheet.getValue(field);
+            // Dates are shown as YYYY-MM-DD; a legacy string date the migration could not parse is shown as stored
+            map.put(field, value instanceof TimestampValue ? WorkSheetDates.toDateString(((TimestampValue) value).get()) : value.get());
+        }
+        return map;
+    }
+
+    /**
+     * Creates many work sheets in one call, from a JSON array or an NDJSON stream of the same
+     * objects /create accepts. The body is parsed as it arrives and handled in chunks of
+     * IMPORT_CHUNK_SIZE: one transaction per chunk checks all references with a single batched get
+     * and writes the new work sheets with a single put. Existing work sheets are never overwritten.
+     * The response reports the outcome of every item by its position in the input.
+     */
+    @POST
+    @Path("/import")
+    @Secured
+    @Consumes({MediaType.APPLICATION_JSON, NDJSON})
+    public Response importWorkSheets(InputStream body, @Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.CREATE_WORKSHEET, requestingUser.getRole())) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_IMPORT, null, tokenID, "Insufficient permissions. Only BACKOFFICE or ADMIN can create work sheets."))).build();
+        }
+
+        List<Map<String, Object>> items = new ArrayList<>();
+        List<CreateWorkSheetData> chunk = new ArrayList<>(IMPORT_CHUNK_SIZE);
+        List<Integer> chunkIndexes = new ArrayList<>(IMPORT_CHUNK_SIZE);
+        Set<String> seen = new HashSet<>();
+        int[] counts = new int[2]; // created, failed or skipped
+        String parseError = null;
+        boolean truncated = false;
+
+        // Lenient mode reads consecutive top-level values, which is what NDJSON is
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        reader.setLenient(true);
+        int index = 0;
+        try {
+            boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                reader.beginArray();
+            }
+            while (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+                if (index >= IMPORT_MAX_ITEMS) {
+                    truncated = true;
+                    break;
+                }
+                CreateWorkSheetData data = g.fromJson(reader, CreateWorkSheetData.class);
+                if (data == null || !data.isValidForCreation()) {
+                    items.add(importItem(index, data == null ? null : data.reference, "invalid", "Invalid or missing mandatory attributes."));
+                    counts[1]++;
+                } else if (!seen.add(data.reference)) {
+                    items.add(importItem(index, data.reference, "duplicate", "Reference repeated in this import."));
+                    counts[1]++;
+                } else {
+                    chunk.add(data);
+                    chunkIndexes.add(index);
+                    if (chunk.size() == IMPORT_CHUNK_SIZE) {
+                        importChunk(chunk, chunkIndexes, items, counts, requestingUser.getUsername());
+                    }
+                }
+                index++;
+            }
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            parseError = "Malformed input at item " + index + ": " + e.getMessage();
+            LOG.warning("Work sheet import stopped: " + parseError);
+        }
+        if (!chunk.isEmpty()) {
+            importChunk(chunk, chunkIndexes, items, counts, requestingUser.getUsername());
+        }
+        items.sort((a, b) -> Integer.compare((Integer) a.get("index"), (Integer) b.get("index")));
+
+        Map<String, Object> report = new HashMap<>();
+        report.put("created", counts[0]);
+        report.put("notCreated", counts[1]);
+        report.put("truncated", truncated);
+        if (parseError != null) {
+            report.put("error", parseError);
+        }
+        report.put("items", items);
+        LOG.info("Work sheet import by user " + requestingUser.getUsername() + ": " + counts[0] + " created, " + counts[1] + " not created.");
+        return Response.ok(g.toJson(report)).build();
+    }
+
+    // Writes one chunk in its own transaction, reports every item of it, and clears the chunk
+    private void importChunk(List<CreateWorkSheetData> chunk, List<Integer> indexes,
+                             List<Map<String, Object>> items, int[] counts, String actor) {
+        KeyFactory keyFactory = datastore.newKeyFactory().setKind(KIND_WORKSHEET);
+        Key[] keys = new Key[chunk.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyFactory.newKey(chunk.get(i).reference);
+        }
+
+        Transaction txn = datastore.newTransaction();
+        try {
+            List<Entity> existing = txn.fetch(keys);
+            List<Entity> created = new ArrayList<>(chunk.size());
+            Map<String, Long> statsDeltas = new HashMap<>();
+            boolean[] exists = new boolean[chunk.size()];
+            for (int i = 0; i < keys.length; i++) {
+                if (existing.get(i) != null) {
+                    exists[i] = true;
+                    continue;
+                }
+                CreateWorkSheetData data = chunk.get(i);
+                Entity.Builder builder = Entity.newBuilder(keys[i])
+                        .set(FIELD_REFERENCE, data.reference)
+                        .set(FIELD_DESCRIPTION, data.description)
+                        .set(FIELD_TARGET_TYPE, data.targetType)
+                        .set(FIELD_ADJUDICATION_STATUS, NOT_ADJUDICATED);
+                setLocation(builder, data);
+                WorkSheetStats.markCounted(builder);
+                Entity workSheet = builder.build();
+                created.add(workSheet);
+                created.add(WorkSheetHistory.event(datastore, WorkSheetHistory.EVENT_CREATED, actor, null, workSheet));
+                WorkSheetStats.diff(null, workSheet, statsDeltas);
+            }
+            if (!created.isEmpty()) {
+                txn.put(created.toArray(new Entity[0]));
+                // One counter shard update for the whole chunk
+                WorkSheetStats.apply(datastore, txn, statsDeltas);
+            }
+            txn.commit();
+
+            for (int i = 0; i < keys.length; i++) {
+                if (exists[i]) {
+                    items.add(importItem(indexes.get(i), chunk.get(i).reference, "exists", "Work sheet with this reference already exists."));
+                    counts[1]++;
+                } else {
+                    items.add(importItem(indexes.get(i), chunk.get(i).reference, "created", null));
+                    counts[0]++;
+                }
+            }
+        } catch (DatastoreException e) {
+            LOG.severe("Work sheet import chunk failed: " + e.getMessage());
+            for (int i = 0; i < keys.length; i++) {
+                items.add(importItem(indexes.get(i), chunk.get(i).reference, "failed", "Failed to write work sheet, please retry."));
+                counts[1]++;
+            }
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+            chunk.clear();
+            indexes.clear();
+        }
+    }
+
+    private Map<String, Object> importItem(int index, String reference, String status, String message) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("index", index);
+        item.put(FIELD_REFERENCE, reference);
+        item.put("status", status);
+        if (message != null) {
+            item.put("message", message);
+        }
+        return item;
+    }
+
+    /**
+     * Lists the open work sheets adjudicated to the calling partner. They are read from the
+     * PartnerWork entities under the partner's User key, kept in step with the work sheets by the
+     * adjudication and status transactions, so this is one strongly consistent ancestor query
+     * whose cost does not depend on how many work sheets exist.
+     */
+    @POST
+    @Path("/inbox")
+    @Secured
+    public Response partnerInbox(@Context SecurityContext securityContext,
+                                 @QueryParam("pageSize") Integer pageSize, @QueryParam("cursor") String cursor) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.READ_PARTNER_INBOX, requestingUser.getRole())) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_INBOX, null, tokenID, "Only PARTNER users have a work sheet inbox."))).build();
+        }
+
+        EntityQuery.Builder query = Query.newEntityQueryBuilder()
+                .setKind(KIND_PARTNER_WORK)
+                .setFilter(PropertyFilter.hasAncestor(datastore.newKeyFactory().setKind(KIND_USER).newKey(requestingUser.getUsername())));
+
+        PagedQuery.Page<Entity> page;
+        try {
+            page = PagedQuery.fetch(datastore, List.of(query), PagedQuery.pageSize(pageSize), cursor);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(new OpResult(OPERATION_NAME_INBOX, null, tokenID, "Invalid pagination cursor."))).build();
+        } catch (DatastoreException e) {
+            LOG.severe("Error reading partner inbox: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(new OpResult(OPERATION_NAME_INBOX, null, tokenID, "Failed to read the work sheet inbox."))).build();
+        }
+
+        List<Map<String, Object>> workSheets = new ArrayList<>(page.items.size());
+        for (Entity work : page.items) {
+            workSheets.add(workSheetToMap(work));
+        }
+        return Response.ok(g.toJson(new PageResult(workSheets, page.nextCursor))).build();
+    }
+
+    /**
+     * Work sheet counts per adjudication status, work status and target type, served from the
+     * in-memory snapshot kept by WorkSheetStats (at most apdc.worksheetstats.refreshMs old).
+     * Until the recount of pre-existing work sheets has completed the answer is 503, or, where
+     * migrations are disabled and the recount will not run here, the counts flagged "partial".
+     */
+    @POST
+    @Path("/stats")
+    @Secured
+    public Response workSheetStats(@Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.READ_WORKSHEET_STATS, requestingUser.getRole())) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_STATS, null, tokenID, "Only BACKOFFICE or ADMIN can read work sheet statistics."))).build();
+        }
+        boolean complete = WorkSheetStats.isComplete(datastore);
+        if (!complete && DataMigrations.isEnabled()) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", 60)
+                    .entity(g.toJson(new OpResult(OPERATION_NAME_STATS, null, tokenID, "Work sheet statistics are being recounted. Try again later."))).build();
+        }
+        try {
+            Map<String, Object> counts = new HashMap<>(WorkSheetStats.snapshot(datastore));
+            counts.put("partial", !complete);
+            return Response.ok(g.toJson(counts)).build();
+        } catch (DatastoreException e) {
+            LOG.severe("Error reading work sheet statistics: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(new OpResult(OPERATION_NAME_STATS, null, tokenID, "Failed to read work sheet statistics."))).build();
+        }
+    }
+
+    /**
+     * Streams the change history of one work sheet as a JSON array, oldest event first, read with
+     * a single ancestor query over its WorkSheetEvent children. BACKOFFICE and ADMIN may read any
+     * history; a PARTNER only that of work sheets adjudicated to them.
+     */
+    @GET
+    @Path("/{reference}/history")
+    @Secured
+    public Response workSheetHistory(@PathParam("reference") String reference, @Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+        String userRole = requestingUser.getRole();
+
+        boolean mayReadAny = AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.READ_WORKSHEET_HISTORY, userRole);
+        if (!mayReadAny && !AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.READ_OWN_WORKSHEET_HISTORY, userRole)) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_HISTORY, null, tokenID, "Insufficient permissions to read work sheet history."))).build();
+        }
+
+        Key workSheetKey = datastore.newKeyFactory().setKind(KIND_WORKSHEET).newKey(reference);
+        Entity workSheet = datastore.get(workSheetKey);
+        if (workSheet == null) {
+            return Response.status(Status.NOT_FOUND).entity(g.toJson(new OpResult(OPERATION_NAME_HISTORY, null, tokenID, "Work sheet with reference not found."))).build();
+        }
+        if (!mayReadAny && !(workSheet.contains(FIELD_PARTNER_ACCOUNT)
+                && requestingUser.getUsername().equals(workSheet.getString(FIELD_PARTNER_ACCOUNT)))) {
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(new OpResult(OPERATION_NAME_HISTORY, null, tokenID, "Work sheet is not adjudicated to this partner."))).build();
+        }
+
+        EntityQuery query = WorkSheetHistory.historyQuery(datastore, workSheetKey);
+        StreamingOutput stream = output -> {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+            long count = 0;
+            writer.beginArray();
+            QueryResults<Entity> results = datastore.run(query);
+            while (results.hasNext()) {
+                WorkSheetHistory.write(writer, results.next());
+                if (++count % HISTORY_FLUSH_INTERVAL == 0) {
+                    writer.flush();
+                }
+            }
+            writer.endArray();
+            writer.flush();
+        };
+        return Response.ok(stream).build();
+    }
+
+    private Key partnerWorkKey(String partner, String reference) {
+        return datastore.newKeyFactory()
+                .addAncestor(PathElement.of(KIND_USER, partner))
+                .setKind(KIND_PARTNER_WORK)
+                .newKey(reference);
+    }
+
+    // Inbox copy of a work sheet: the fields a partner needs to pick up and report on the work
+    private Entity partnerWork(String partner, Entity workSheet) {
+        Entity.Builder builder = Entity.newBuilder(partnerWorkKey(partner, workSheet.getKey().getName()));
+        for (String field : PARTNER_WORK_FIELDS) {
+            if (workSheet.contains(field)) {
+                builder.set(field, workSheet.getValue(field));
+            }
+        }
+        return builder.build();
+    }
+}
@@ -1,20 +1,35 @@
 package pt.unl.fct.di.apdc.firstwebapp.resources;
 
 import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.google.gson.Gson;
-import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import com.google.gson.stream.JsonWriter;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy;
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.PageResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.PagedQuery;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
-import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
+import jakarta.ws.rs.core.StreamingOutput;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 @Path("/listusers")
@@ -23,7 +38,8 @@ public class ListUsersResource {
 
     private static final Logger LOG = Logger.getLogger(ListUsersResource.class.getName());
     private final Gson g = new Gson();
-    private final Datastore datastore = DatastoreOptions.newBuilder().setProjectId("projetoadc-456513").build().getService();
+    @Inject
+    private Datastore datastore;
 
     private static final String KIND_USER = "User";
     private static final String FIELD_EMAIL = "user_email";
@@ -52,72 +68,198 @@ public class ListUsersResource {
     private static final String NOT_DEFINED = "NOT DEFINED";
 
     private static final String OPERATION_NAME = "OP6 - listUsers";
+    private static final String OPERATION_NAME_EXPORT = "OP6 - exportUsers";
+    private static final String OPERATION_NAME_COUNT = "OP6 - countUsers";
+
+    private static final String[] VISIBLE_TARGET_ROLES = {ROLE_ENDUSER, ROLE_PARTNER}; // Roles BACKOFFICE and ENDUSER may see
+
+    private static final int EXPORT_FLUSH_INTERVAL = 100; // Users written between flushes of the export stream
+
+    private static final String[] FULL_VIEW_STRING_FIELDS = {
+            FIELD_EMAIL, FIELD_PROFILE, FIELD_PHONE, FIELD_ROLE, FIELD_STATE, FIELD_OCCUPATION, FIELD_WORKPLACE,
+            FIELD_ADDRESS, FIELD_POSTAL_CODE, FIELD_NIF, FIELD_CC, FIELD_EMPLOYER_NIF
+    };
 
     @POST // Changed to POST
     @Path("/")
-    public Response listUsers(@HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
+    @Secured
+    public Response listUsers(@Context SecurityContext securityContext,
+                              @QueryParam("pageSize") Integer pageSize, @QueryParam("cursor") String cursor) {
         LOG.fine("Attempting to list users.");
 
-        String tokenID = AuthUtil.extractTokenID(authHeader);
-        if (tokenID == null) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, null, null, "Missing Authorization Bearer token.");
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+        String requesterRole = requestingUser.getRole().toUpperCase();
+        LOG.info("List users request by user: " + requestingUser.getUsername() + " with role: " + requesterRole);
+
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.LIST_USERS, requesterRole)) {
+            LOG.warning("Unknown role encountered for requester: " + requesterRole);
+            OpResult errorResult = new OpResult(OPERATION_NAME, null, tokenID, "Internal role configuration error.");
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
+        }
+
+        List<Map<String, Object>> usersList;
+        String nextCursor;
+        try {
+            if (ROLE_ENDUSER.equals(requesterRole)) {
+                // Restricted view: a projection query reads only the shown properties from the index
+                List<ProjectionEntityQuery.Builder> segments = visibleUsersQuery(requesterRole,
+                        () -> Query.newProjectionEntityQueryBuilder().setProjection(FIELD_EMAIL, FIELD_USERNAME_DISPLAY));
+                PagedQuery.Page<ProjectionEntity> page = PagedQuery.fetch(datastore, segments, PagedQuery.pageSize(pageSize), cursor);
+                usersList = new ArrayList<>(page.items.size());
+                for (ProjectionEntity targetUser : page.items) {
+                    usersList.add(entityToRestrictedMap(targetUser));
+                }
+                nextCursor = page.nextCursor;
+            } else {
+                List<EntityQuery.Builder> segments = visibleUsersQuery(requesterRole, Query::newEntityQueryBuilder);
+                PagedQuery.Page<Entity> page = PagedQuery.fetch(datastore, segments, PagedQuery.pageSize(pageSize), cursor);
+                usersList = new ArrayList<>(page.items.size());
+                for (Entity targetUser : page.items) {
+                    usersList.add(entityToFullMap(targetUser, targetUser.getKey().getName()));
+                }
+                nextCursor = page.nextCursor;
+            }
+        } catch (IllegalArgumentException e) {
+            OpResult errorResult = new OpResult(OPERATION_NAME, null, tokenID, "Invalid pagination cursor.");
             return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
         }
 
-        Entity requestingUser = AuthUtil.validateToken(datastore, tokenID);
-        if (requestingUser == null) {
-            LOG.warning("List users request with invalid or expired token: " + tokenID);
-            OpResult errorResult = new OpResult(OPERATION_NAME, null, tokenID, "Invalid or expired token.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
+        LOG.info("Successfully listed " + usersList.size() + " users for role " + requesterRole);
+        return Response.ok(g.toJson(new PageResult(usersList, nextCursor))).build();
+    }
+
+    /**
+     * Counts the users visible to the requester with a keys-only query, so no entity is read.
+     */
+    @POST
+    @Path("/count")
+    @Secured
+    public Response countUsers(@Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+        String requesterRole = requestingUser.getRole().toUpperCase();
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.LIST_USERS, requesterRole)) {
+            OpResult errorResult = new OpResult(OPERATION_NAME_COUNT, null, tokenID, "Internal role configuration error.");
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
         }
-        String requesterRole = requestingUser.getString(FIELD_ROLE);
-        LOG.info("List users request by user: " + requestingUser.getKey().getName() + " with role: " + requesterRole);
-
-        Query<Entity> query = Query.newEntityQueryBuilder()
-                .setKind(KIND_USER)
-                .build();
-
-        QueryResults<Entity> results = datastore.run(query);
-        List<Map<String, Object>> usersList = new ArrayList<>();
-
-        while (results.hasNext()) {
-            Entity targetUser = results.next();
-            String targetUsername = targetUser.getKey().getName();
-            String targetRole = targetUser.getString(FIELD_ROLE);
-
-            Map<String, Object> userData = null;
-
-            switch (requesterRole.toUpperCase()) {
-                case ROLE_ENDUSER:
-                    if ((ROLE_ENDUSER.equals(targetRole) || ROLE_PARTNER.equals(targetRole)) &&
-                            targetUser.contains(FIELD_PROFILE) && PROFILE_PUBLIC.equalsIgnoreCase(targetUser.getString(FIELD_PROFILE)) &&
-                            targetUser.contains(FIELD_STATE) && STATE_ACTIVE.equalsIgnoreCase(targetUser.getString(FIELD_STATE))) {
-                        userData = new HashMap<>();
-                        userData.put("username", targetUsername);
-                        userData.put(FIELD_EMAIL, targetUser.contains(FIELD_EMAIL) ? targetUser.getString(FIELD_EMAIL) : NOT_DEFINED);
-                        userData.put("name", targetUser.contains(FIELD_USERNAME_DISPLAY) ? targetUser.getString(FIELD_USERNAME_DISPLAY) : NOT_DEFINED);
-                        usersList.add(userData);
-                    }
-                    break;
-                case ROLE_BACKOFFICE:
-                    if (ROLE_ENDUSER.equals(targetRole) || ROLE_PARTNER.equals(targetRole)) {
-                        userData = entityToFullMap(targetUser, targetUsername);
-                        usersList.add(userData);
+
+        long count = 0;
+        for (KeyQuery.Builder segment : visibleUsersQuery(requesterRole, Query::newKeyQueryBuilder)) {
+            QueryResults<Key> results = datastore.run(segment.build());
+            while (results.hasNext()) {
+                results.next();
+                count++;
+            }
+        }
+
+        Map<String, Object> countResult = new HashMap<>();
+        countResult.put("count", count);
+        return Response.ok(g.toJson(countResult)).build();
+    }
+
+    /**
+     * Exports every user visible to the requester as one JSON array, streamed to the client as
+     * the query advances. Heap use is constant regardless of how many users exist.
+     */
+    @POST
+    @Path("/export")
+    @Secured
+    public Response exportUsers(@Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+        String requesterRole = requestingUser.getRole().toUpperCase();
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.EXPORT_USERS, requesterRole)) {
+            OpResult errorResult = new OpResult(OPERATION_NAME_EXPORT, null, tokenID, "Only ADMIN or BACKOFFICE can export users.");
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
+        }
+        LOG.info("Export users request by user: " + requestingUser.getUsername() + " with role: " + requesterRole);
+
+        List<EntityQuery.Builder> segments = visibleUsersQuery(requesterRole, Query::newEntityQueryBuilder);
+        StreamingOutput stream = output -> {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+            long count = 0;
+            writer.beginArray();
+            for (EntityQuery.Builder segment : segments) {
+                QueryResults<Entity> results = datastore.run(segment.build());
+                while (results.hasNext()) {
+                    writeFullUser(writer, results.next());
+                    if (++count % EXPORT_FLUSH_INTERVAL == 0) {
+                        writer.flush();
                     }
-                    break;
-                case ROLE_ADMIN:
-                    userData = entityToFullMap(targetUser, targetUsername);
-                    usersList.add(userData);
-                    break;
-                default:
-                    LOG.warning("Unknown role encountered for requester: " + requesterRole);
-                    OpResult errorResult = new OpResult(OPERATION_NAME, null, tokenID, "Internal role configuration error.");
-                    return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
+                }
             }
+            writer.endArray();
+            writer.flush();
+            LOG.info("Exported " + count + " users for role " + requesterRole);
+        };
+        return Response.ok(stream).build();
+    }
+
+    /**
+     * Builds the queries selecting the users visible to the given role, with the visibility rules
+     * as Datastore filters (see datastore-indexes.xml). "Role is ENDUSER or PARTNER" becomes one
+     * equality query per role, read in sequence by PagedQuery.
+     * @param newQuery Creates an empty query of the wanted type (entity, projection or keys-only).
+     * @return The query segments; empty if the role may not list users.
+     */
+    private <B extends StructuredQuery.Builder<?>> List<B> visibleUsersQuery(String requesterRole, Supplier<B> newQuery) {
+        List<B> segments = new ArrayList<>();
+        switch (requesterRole) {
+            case ROLE_ENDUSER:
+                for (String targetRole : VISIBLE_TARGET_ROLES) {
+                    B query = newQuery.get();
+                    query.setKind(KIND_USER).setFilter(CompositeFilter.and(
+                            PropertyFilter.eq(FIELD_ROLE, targetRole),
+                            PropertyFilter.eq(FIELD_PROFILE, PROFILE_PUBLIC),
+                            PropertyFilter.eq(FIELD_STATE, STATE_ACTIVE)));
+                    segments.add(query);
+                }
+                break;
+            case ROLE_BACKOFFICE:
+                for (String targetRole : VISIBLE_TARGET_ROLES) {
+                    B query = newQuery.get();
+                    query.setKind(KIND_USER).setFilter(PropertyFilter.eq(FIELD_ROLE, targetRole));
+                    segments.add(query);
+                }
+                break;
+            case ROLE_ADMIN:
+                B query = newQuery.get();
+                query.setKind(KIND_USER);
+                segments.add(query);
+                break;
+            default:
+                break;
         }
+        return segments;
+    }
 
-        LOG.info("Successfully listed " + usersList.size() + " users for role " + requesterRole);
-        return Response.ok(g.toJson(usersList)).build();
+    private Map<String, Object> entityToRestrictedMap(BaseEntity<Key> userEntity) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("username", userEntity.getKey().getName());
+        map.put(FIELD_EMAIL, userEntity.contains(FIELD_EMAIL) ? userEntity.getString(FIELD_EMAIL) : NOT_DEFINED);
+        map.put("name", userEntity.contains(FIELD_USERNAME_DISPLAY) ? userEntity.getString(FIELD_USERNAME_DISPLAY) : NOT_DEFINED);
+        return map;
+    }
+
+    // Same fields as entityToFullMap, written straight to the stream without building a map per user.
+    private void writeFullUser(JsonWriter writer, Entity userEntity) throws IOException {
+        writer.beginObject();
+        writer.name("username").value(userEntity.getKey().getName());
+        writer.name("name").value(stringOrNotDefined(userEntity, FIELD_USERNAME_DISPLAY));
+        for (String field : FULL_VIEW_STRING_FIELDS) {
+            writer.name(field).value(stringOrNotDefined(userEntity, field));
+        }
+        if (userEntity.contains(FIELD_IS_PUBLIC)) {
+            writer.name(FIELD_IS_PUBLIC).value(userEntity.getBoolean(FIELD_IS_PUBLIC));
+        } else {
+            writer.name(FIELD_IS_PUBLIC).value(NOT_DEFINED);
+        }
+        writer.endObject();
+    }
+
+    private String stringOrNotDefined(Entity userEntity, String field) {
+        return userEntity.contains(field) ? userEntity.getString(field) : NOT_DEFINED;
     }
 
     private Map<String, Object> entityToFullMap(Entity userEntity, String username) {
@@ -2,8 +2,8 @@ package pt.unl.fct.di.apdc.firstwebapp.resources;
 
 import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.*;
-import com.google.cloud.datastore.StructuredQuery.PropertyFilter; // Import PropertyFilter
 import com.google.gson.Gson;
+import jakarta.inject.Inject;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
@@ -14,12 +14,24 @@ import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
-import org.apache.commons.codec.digest.DigestUtils;
+import jakarta.ws.rs.core.SecurityContext;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
 import pt.unl.fct.di.apdc.firstwebapp.util.AuthToken;
 import pt.unl.fct.di.apdc.firstwebapp.util.LoginData; // Use updated LoginData
 import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import pt.unl.fct.di.apdc.firstwebapp.util.GeoHash;
+import pt.unl.fct.di.apdc.firstwebapp.util.LoginStatsAggregator;
+import pt.unl.fct.di.apdc.firstwebapp.util.LoginThrottle;
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
-
+import pt.unl.fct.di.apdc.firstwebapp.util.PasswordHasher;
+import pt.unl.fct.di.apdc.firstwebapp.util.SessionRenewal;
+import pt.unl.fct.di.apdc.firstwebapp.util.TokenSigner;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserEmailIndex;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserLogWriter;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern; // Import Pattern for email check
@@ -30,17 +42,17 @@ import java.util.regex.Pattern; // Import Pattern for email check
 public class LoginResource {
 
     private static final String OPERATION_NAME = "OP2 - login"; // Correct name
+    private static final String REFRESH_OPERATION_NAME = "OP2 - refresh";
 
     private final Gson g = new Gson();
     private static final Logger LOG = Logger.getLogger(LoginResource.class.getName());
-    private final Datastore datastore = DatastoreOptions.newBuilder().setProjectId("projetoadc-456513").build().getService();
-    private final KeyFactory userKeyFactory = datastore.newKeyFactory().setKind("User"); // Keep for key-based lookup
+    @Inject
+    private Datastore datastore;
 
     private static final String KIND_USER = "User"; // User Kind constant
     private static final String FIELD_PASSWORD = "user_pwd";
     private static final String FIELD_STATE = "user_state";
     private static final String FIELD_ROLE = "user_role";
-    private static final String FIELD_EMAIL = "user_email"; // Email field constant
     private static final String ACTIVE_STATE = "active";
 
     // Simple regex for basic email format check
@@ -68,35 +80,56 @@ public class LoginResource {
             return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
         }
 
-        Transaction txn = datastore.newTransaction();
+        // The IP and the identifier as given are checked before any Datastore read or hash computation.
+        // Failures are also counted per account, so an email is then resolved to its owner, whose
+        // username and email share a budget.
+        String remoteAddr = request.getRemoteAddr();
+        boolean isEmail = isEmailFormat(data.identifier);
+        String emailOwner = null;
+        long retryAfterMs = LoginThrottle.retryAfterMs(data.identifier, remoteAddr);
+        if (retryAfterMs == 0 && isEmail) {
+            try {
+                // Accounts created before the UserEmail lookup existed are found by query until the backfill has run
+                emailOwner = UserEmailIndex.owner(datastore, datastore, data.identifier);
+            } catch (DatastoreException e) {
+                LOG.log(Level.SEVERE, "Email lookup failed for identifier: " + data.identifier, e);
+                OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Login failed due to server error.");
+                return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(errorResult)).build();
+            }
+            if (emailOwner != null) {
+                retryAfterMs = LoginThrottle.retryAfterMs(emailOwner, null);
+            }
+        }
+        if (retryAfterMs > 0) {
+            LOG.warning("Login throttled for identifier: " + data.identifier + " from " + remoteAddr);
+            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Too many failed login attempts. Try again later.");
+            return Response.status(Status.TOO_MANY_REQUESTS)
+                    .header("Retry-After", (retryAfterMs + 999) / 1000)
+                    .entity(g.toJson(errorResult)).build();
+        }
+
+        // The user is read and the password checked (and re-hashed if due) outside the transaction, so
+        // no PBKDF2 derivation runs while it is open; the transaction re-reads the user and gives up
+        // if the stored hash changed in between.
+        Transaction txn = null;
         try {
             Entity userEntity = null; // Variable to hold the found user entity
             String identifierUsed = data.identifier; // Keep track for logging/errors
 
             // --- Logic to find user by Email or UserID ---
-            if (isEmailFormat(identifierUsed)) {
+            if (isEmail) {
                 LOG.fine("Identifier detected as email: " + identifierUsed);
-                // Query by email (ensure user_email is indexed)
-                // Consider converting email to lowercase here and storing emails lowercase during registration for case-insensitive login
-                Query<Entity> query = Query.newEntityQueryBuilder()
-                        .setKind(KIND_USER)
-                        .setFilter(PropertyFilter.eq(FIELD_EMAIL, identifierUsed))
-                        .setLimit(1) // Expect only one user per email
-                        .build();
-
-                QueryResults<Entity> results = txn.run(query);
-
-                if (results.hasNext()) {
-                    userEntity = results.next();
-                    LOG.fine("User found via email query for: " + identifierUsed);
+                if (emailOwner != null) {
+                    userEntity = datastore.get(datastore.newKeyFactory().setKind(KIND_USER).newKey(emailOwner));
+                    LOG.fine("User found via email lookup for: " + identifierUsed);
                 } else {
                     LOG.warning("No user found for email: " + identifierUsed);
                 }
 
             } else {
                 LOG.fine("Identifier assumed to be userID: " + identifierUsed);
-                Key userKey = userKeyFactory.newKey(identifierUsed);
-                userEntity = txn.get(userKey);
+                Key userKey = datastore.newKeyFactory().setKind(KIND_USER).newKey(identifierUsed);
+                userEntity = datastore.get(userKey);
 
                 if (userEntity != null) {
                     LOG.fine("User found via key lookup for: " + identifierUsed);
@@ -107,7 +140,7 @@ public class LoginResource {
 
             if (userEntity == null) {
                 LOG.warning("Login failed: No user found for identifier: " + identifierUsed);
-                txn.rollback();
+                LoginThrottle.recordFailure(data.identifier, remoteAddr);
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Incorrect identifier or password.");
                 return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
             }
@@ -119,12 +152,30 @@ public class LoginResource {
             String currentState = userEntity.contains(FIELD_STATE) ? userEntity.getString(FIELD_STATE) : "";
             boolean isActive = ACTIVE_STATE.equalsIgnoreCase(currentState);
 
+            boolean passwordValid = PasswordHasher.verify(data.password, storedPasswordHash);
+            // Upgrade legacy or weaker hashes while the plain password is at hand
+            String upgradedHash = passwordValid && isActive && PasswordHasher.needsRehash(storedPasswordHash)
+                    ? PasswordHasher.hash(data.password) : null;
+
+            txn = datastore.newTransaction();
+            userEntity = txn.get(userEntity.getKey());
+            if (userEntity == null || !storedPasswordHash.equals(userEntity.getString(FIELD_PASSWORD))) {
+                txn.rollback();
+                LOG.warning("Login for user " + actualUserID + " raced a change to the account.");
+                OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Account changed during login, please retry.");
+                return Response.status(Status.CONFLICT).entity(g.toJson(errorResult)).build();
+            }
+            currentState = userEntity.contains(FIELD_STATE) ? userEntity.getString(FIELD_STATE) : "";
+            isActive = ACTIVE_STATE.equalsIgnoreCase(currentState);
+
+            // With buffered stats the counters entity is neither read nor written in this transaction
+            boolean bufferedStats = LoginStatsAggregator.isEnabled();
             Key ctrsKey = datastore.newKeyFactory()
                     .addAncestor(PathElement.of(KIND_USER, actualUserID)) //
                     .setKind("UserStats").newKey("counters");
-            Entity stats = txn.get(ctrsKey);
+            Entity stats = bufferedStats ? null : txn.get(ctrsKey);
 
-            if (stats == null) {
+            if (!bufferedStats && stats == null) {
                 LOG.warning("Stats entity missing for user: " + actualUserID + ". Creating default.");
                 stats = Entity.newBuilder(ctrsKey)
                         .set("user_stats_logins", 0L)
@@ -133,7 +184,7 @@ public class LoginResource {
                         .build();
             }
 
-            if (storedPasswordHash.equals(DigestUtils.sha512Hex(data.password))) {
+            if (passwordValid) {
                 if (isActive) {
                     LOG.info("User '" + actualUserID + "' credentials verified and account is active.");
 
@@ -147,38 +198,65 @@ public class LoginResource {
                             .set("creation_date", token.creationData)
                             .set("expiration_date", token.expirationData)
                             .set("verifier", token.verifier)
+                            .set(AuthUtil.FIELD_TOKEN_GENERATION, AuthUtil.tokenGeneration(userEntity))
                             .set("creation_ip", StringValue.newBuilder(request.getRemoteAddr()).setExcludeFromIndexes(true).build())
                             .build();
 
-                    Entity ustats = Entity.newBuilder(stats)
-                            .set("user_stats_logins", 1L + (stats.contains("user_stats_logins") ? stats.getLong("user_stats_logins") : 0L))
-                            .set("user_stats_failed", 0L) // Reset failed attempts
-                            .set("user_last_login", Timestamp.now())
-                            .set("user_first_login", stats.contains("user_first_login") ? stats.getTimestamp("user_first_login") : Timestamp.now())
-                            .set("user_last_attempt", stats.contains("user_last_attempt") ? stats.getTimestamp("user_last_attempt") : Timestamp.now())
-                            .build();
-
-                    Key logKey = datastore.allocateId(
-                            datastore.newKeyFactory()
-                                    .addAncestor(PathElement.of(KIND_USER, actualUserID)) // Use actualUserID
-                                    .setKind("UserLog").newKey()
-                    );
+                    IncompleteKey logKey = datastore.newKeyFactory()
+                            .addAncestor(PathElement.of(KIND_USER, actualUserID)) // Use actualUserID
+                            .setKind("UserLog").newKey();
 
-                    Entity.Builder logBuilder = Entity.newBuilder(logKey)
+                    FullEntity.Builder<IncompleteKey> logBuilder = FullEntity.newBuilder(logKey)
                             .set("user_login_ip", request.getRemoteAddr())
                             .set("user_login_host", request.getRemoteHost())
                             .set("user_login_time", Timestamp.now())
                             .set("user_associated_token", token.tokenID);
                     String latLon = headers.getHeaderString("X-AppEngine-CityLatLong");
                     if (latLon != null) logBuilder.set("user_login_latlon", StringValue.newBuilder(latLon).setExcludeFromIndexes(true).build());
+                    double[] location = GeoHash.parseLatLon(latLon);
+                    if (location != null && (location[0] != 0 || location[1] != 0)) { // 0,0 means unknown
+                        GeoHash.index(logBuilder, location[0], location[1]);
+                    }
                     String city = headers.getHeaderString("X-AppEngine-City");
                     if (city != null) logBuilder.set("user_login_city", city);
                     String country = headers.getHeaderString("X-AppEngine-Country");
                     if (country != null) logBuilder.set("user_login_country", country);
-                    Entity log = logBuilder.build();
-
-                    txn.put(tokenEntity, ustats, log);
+                    FullEntity<IncompleteKey> log = logBuilder.build();
+
+                    // With the async pipeline the login record is written by UserLogWriter after commit
+                    boolean asyncLog = UserLogWriter.isEnabled();
+                    List<FullEntity<?>> writes = new ArrayList<>(3);
+                    writes.add(tokenEntity);
+                    if (upgradedHash != null) {
+                        writes.add(Entity.newBuilder(userEntity).set(FIELD_PASSWORD, upgradedHash).build());
+                    }
+                    if (!asyncLog) {
+                        writes.add(Entity.newBuilder(datastore.allocateId(logKey), log).build());
+                    }
+                    if (!bufferedStats) {
+                        Entity ustats = Entity.newBuilder(stats)
+                                .set("user_stats_logins", 1L + (stats.contains("user_stats_logins") ? stats.getLong("user_stats_logins") : 0L))
+                                .set("user_stats_failed", 0L) // Reset failed attempts
+                                .set("user_last_login", Timestamp.now())
+                                .set("user_first_login", stats.contains("user_first_login") ? stats.getTimestamp("user_first_login") : Timestamp.now())
+                                .set("user_last_attempt", stats.contains("user_last_attempt") ? stats.getTimestamp("user_last_attempt") : Timestamp.now())
+                                .build();
+                        writes.add(ustats);
+                    }
+                    txn.put(writes.toArray(new FullEntity<?>[0]));
                     txn.commit();
+                    if (bufferedStats) {
+                        LoginStatsAggregator.recordSuccess(actualUserID);
+                    }
+                    if (asyncLog) {
+                        UserLogWriter.submit(log);
+                    }
+                    LoginThrottle.recordSuccess(actualUserID, isEmail ? data.identifier : null);
+
+                    if (TokenSigner.isEnabled()) {
+                        // Clients present the signed form; the stored entity stays keyed by the plain ID (the jti)
+                        token.tokenID = TokenSigner.sign(token, currentState);
+                    }
 
                     LOG.info("User '" + actualUserID + "' logged in successfully. Token created: " + token.tokenID);
                     OpResult successResult = new OpResult(OPERATION_NAME, data, g.toJson(token), "Login successful.");
@@ -192,20 +270,32 @@ public class LoginResource {
                 }
             } else {
                 LOG.warning("Failed login attempt for user: " + actualUserID + " (Incorrect Password)");
+                LoginThrottle.recordFailure(actualUserID, isEmail ? data.identifier : null, remoteAddr);
 
-                Entity ustats = Entity.newBuilder(stats)
-                        .set("user_stats_failed", 1L + (stats.contains("user_stats_failed") ? stats.getLong("user_stats_failed") : 0L))
-                        .set("user_last_attempt", Timestamp.now())
-                        .set("user_stats_logins", stats.contains("user_stats_logins") ? stats.getLong("user_stats_logins") : 0L)
-                        .set("user_first_login", stats.contains("user_first_login") ? stats.getTimestamp("user_first_login") : Timestamp.now())
-                        .set("user_last_login", stats.contains("user_last_login") ? stats.getTimestamp("user_last_login") : Timestamp.now())
-                        .build();
-                txn.put(ustats);
-                txn.commit();
+                if (bufferedStats) {
+                    txn.rollback();
+                    LoginStatsAggregator.recordFailure(actualUserID);
+                } else {
+                    Entity ustats = Entity.newBuilder(stats)
+                            .set("user_stats_failed", 1L + (stats.contains("user_stats_failed") ? stats.getLong("user_stats_failed") : 0L))
+                            .set("user_last_attempt", Timestamp.now())
+                            .set("user_stats_logins", stats.contains("user_stats_logins") ? stats.getLong("user_stats_logins") : 0L)
+                            .set("user_first_login", stats.contains("user_first_login") ? stats.getTimestamp("user_first_login") : Timestamp.now())
+                            .set("user_last_login", stats.contains("user_last_login") ? stats.getTimestamp("user_last_login") : Timestamp.now())
+                            .build();
+                    txn.put(ustats);
+                    txn.commit();
+                }
 
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Incorrect identifier or password.");
                 return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
             }
+        } catch (PasswordHasher.BusyException e) {
+            LOG.warning("Login rejected for identifier " + data.identifier + ": " + e.getMessage());
+            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Server busy, please retry.");
+            return Response.status(Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", PasswordHasher.RETRY_AFTER_SECONDS)
+                    .entity(g.toJson(errorResult)).build();
         } catch (Exception e) {
             LOG.log(Level.SEVERE, "Login transaction failed for identifier: " + data.identifier, e);
             if (txn != null && txn.isActive()) {
@@ -224,4 +314,31 @@ public class LoginResource {
             }
         }
     }
+
+    /**
+     * Extends the caller's session without a new login (see SessionRenewal). Calls made before
+     * the session is due for renewal return the current expiry and write nothing.
+     */
+    @POST
+    @Path("/refresh")
+    @Secured
+    public Response doRefresh(@Context SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+        try {
+            AuthToken token = SessionRenewal.renew(datastore, requestingUser);
+            if (token == null) {
+                LOG.warning("Refresh failed: token no longer exists - " + tokenID);
+                OpResult errorResult = new OpResult(REFRESH_OPERATION_NAME, null, tokenID, "Invalid or expired token.");
+                return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
+            }
+            LOG.fine("Session of user '" + requestingUser.getUsername() + "' valid until " + token.expirationData);
+            OpResult successResult = new OpResult(REFRESH_OPERATION_NAME, null, g.toJson(token), "Session refreshed.");
+            return Response.ok(g.toJson(successResult)).build();
+        } catch (DatastoreException e) {
+            LOG.log(Level.SEVERE, "Session refresh failed for user: " + requestingUser.getUsername(), e);
+            OpResult errorResult = new OpResult(REFRESH_OPERATION_NAME, null, tokenID, "Refresh failed due to server error.");
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(errorResult)).build();
+        }
+    }
 }
\ No newline at end of file
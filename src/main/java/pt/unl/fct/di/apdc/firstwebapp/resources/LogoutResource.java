@@ -2,6 +2,7 @@ package pt.unl.fct.di.apdc.firstwebapp.resources;
 
 import com.google.cloud.datastore.*;
 import com.google.gson.Gson;
+import jakarta.inject.Inject;
 import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
@@ -12,6 +13,9 @@ import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.SessionRenewal;
+import pt.unl.fct.di.apdc.firstwebapp.util.TokenRevocationList;
+import pt.unl.fct.di.apdc.firstwebapp.util.TokenSigner;
 
 import java.util.logging.Logger;
 
@@ -23,7 +27,8 @@ public class LogoutResource {
 
     private static final Logger LOG = Logger.getLogger(LogoutResource.class.getName());
     private final Gson g = new Gson();
-    private final Datastore datastore = DatastoreOptions.newBuilder().setProjectId("projetoadc-456513").build().getService();
+    @Inject
+    private Datastore datastore;
 
     @POST
     @Path("/")
@@ -38,6 +43,10 @@ public class LogoutResource {
             return Response.ok().entity(g.toJson(errorResult)).build(); // Return OK even if token missing/invalid
         }
 
+        if (TokenSigner.isSignedToken(tokenID)) {
+            return doSignedLogout(tokenID);
+        }
+
         Key tokenKey = datastore.newKeyFactory().setKind(AuthUtil.AUTH_TOKEN_KIND).newKey(tokenID);
 
         try {
@@ -45,10 +54,12 @@ public class LogoutResource {
             Entity tokenEntity = datastore.get(tokenKey);
             if (tokenEntity != null) {
                 datastore.delete(tokenKey);
+                AuthUtil.invalidateToken(tokenID);
                 LOG.info("Successfully logged out and revoked token: " + tokenID + " for user " + tokenEntity.getString("user_username"));
                 OpResult successResult = new OpResult(OPERATION_NAME, null, tokenID, "Logout successful.");
                 return Response.ok().entity(g.toJson(successResult)).build();
             } else {
+                AuthUtil.invalidateToken(tokenID);
                 LOG.warning("Logout attempt for non-existent token: " + tokenID);
                 OpResult errorResult = new OpResult(OPERATION_NAME, null, null, "Logout successful (or token invalid).");
                 return Response.ok().entity(g.toJson(errorResult)).build(); // Token already gone or never existed
@@ -61,4 +72,27 @@ public class LogoutResource {
             return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(errorResult)).build(); // Or just OK
         }
     }
+
+    // Signed tokens are validated without Datastore, so logging out means adding them to the revocation list.
+    private Response doSignedLogout(String tokenID) {
+        TokenSigner.Claims claims = TokenSigner.verify(tokenID);
+        if (claims == null) {
+            LOG.warning("Logout attempt with invalid or expired signed token.");
+            OpResult errorResult = new OpResult(OPERATION_NAME, null, null, "Logout successful (or token invalid).");
+            return Response.ok().entity(g.toJson(errorResult)).build();
+        }
+
+        try {
+            // Renewed copies of this token share its jti and may outlive claims.exp
+            TokenRevocationList.revokeToken(datastore, claims.jti, claims.username, SessionRenewal.maxExpiration(claims.iat));
+            datastore.delete(datastore.newKeyFactory().setKind(AuthUtil.AUTH_TOKEN_KIND).newKey(claims.jti));
+            LOG.info("Successfully logged out and revoked signed token: " + claims.jti + " for user " + claims.username);
+            OpResult successResult = new OpResult(OPERATION_NAME, null, tokenID, "Logout successful.");
+            return Response.ok().entity(g.toJson(successResult)).build();
+        } catch (Exception e) {
+            LOG.severe("Error during logout for signed token " + claims.jti + ": " + e.getMessage());
+            OpResult errorResult = new OpResult(OPERATION_NAME, null, null, "Logout failed on server, but proceed.");
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(errorResult)).build();
+        }
+    }
 }
\ No newline at end of file
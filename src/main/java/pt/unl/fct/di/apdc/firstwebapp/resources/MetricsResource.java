@@ -0,0 +1,82 @@
+package pt.unl.fct.di.apdc.firstwebapp.resources;
+
+import com.google.gson.Gson;
+import pt.unl.fct.di.apdc.firstwebapp.filters.AuthenticationFilter;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy;
+import pt.unl.fct.di.apdc.firstwebapp.util.ExpiredTokenSweeper;
+import pt.unl.fct.di.apdc.firstwebapp.util.LoginThrottle;
+import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserLogWriter;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Exposes in-process counters of the background pipelines. ADMIN only.
+ */
+@Path("/metrics")
+@Secured
+@Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
+public class MetricsResource {
+
+    private static final Logger LOG = Logger.getLogger(MetricsResource.class.getName());
+    private final Gson g = new Gson();
+
+    private static final String OPERATION_NAME = "metrics";
+
+    @GET
+    @Path("/")
+    public Response getMetrics(@Context SecurityContext securityContext) {
+        Response denied = checkAdmin(securityContext);
+        if (denied != null) {
+            return denied;
+        }
+
+        Map<String, Object> throttle = new HashMap<>();
+        throttle.put("enabled", LoginThrottle.isEnabled());
+        throttle.put("rejected", LoginThrottle.rejectedCount());
+
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("userLog", UserLogWriter.metrics());
+        metrics.put("loginThrottle", throttle);
+        metrics.put("authentication", AuthenticationFilter.metrics());
+        metrics.put("tokenSweeper", ExpiredTokenSweeper.metrics());
+        return Response.ok(g.toJson(metrics)).build();
+    }
+
+    /**
+     * Lists the login identifiers and IPs that are currently throttled.
+     */
+    @GET
+    @Path("/throttle")
+    public Response getThrottledKeys(@Context SecurityContext securityContext) {
+        Response denied = checkAdmin(securityContext);
+        if (denied != null) {
+            return denied;
+        }
+        return Response.ok(g.toJson(LoginThrottle.throttledKeys())).build();
+    }
+
+    // Returns the error response for a non-ADMIN caller, or null when the caller may proceed
+    private Response checkAdmin(SecurityContext securityContext) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.READ_METRICS, requestingUser.getRole())) {
+            LOG.warning("Metrics request by non-ADMIN user: " + requestingUser.getUsername());
+            OpResult errorResult = new OpResult(OPERATION_NAME, null, requestingUser.getTokenID(), "Only ADMIN can read metrics.");
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
+        }
+        return null;
+    }
+}
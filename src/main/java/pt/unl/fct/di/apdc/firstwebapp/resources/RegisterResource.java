@@ -3,10 +3,12 @@ package pt.unl.fct.di.apdc.firstwebapp.resources;
 import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.*;
 import com.google.gson.Gson;
-import org.apache.commons.codec.digest.DigestUtils;
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.PasswordHasher;
 import pt.unl.fct.di.apdc.firstwebapp.util.RegisterData;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserEmailIndex;
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
@@ -22,7 +24,8 @@ public class RegisterResource {
 
     private static final Logger LOG = Logger.getLogger(RegisterResource.class.getName());
     private final Gson g = new Gson();
-    private final Datastore datastore = DatastoreOptions.newBuilder().setProjectId("projetoadc-456513").build().getService();
+    @Inject
+    private Datastore datastore;
 
     private static final String KIND_USER = "User";
     private static final String FIELD_EMAIL = "user_email";
@@ -67,6 +70,18 @@ public class RegisterResource {
             return Response.status(Status.BAD_REQUEST).entity(g.toJson(result)).build();
         }
 
+        // Hashed before the transaction opens, so no PBKDF2 derivation runs while it holds its locks
+        String passwordHash;
+        try {
+            passwordHash = PasswordHasher.hash(data.password);
+        } catch (PasswordHasher.BusyException e) {
+            LOG.warning("Registration rejected: " + e.getMessage());
+            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Server busy, please retry.");
+            return Response.status(Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", PasswordHasher.RETRY_AFTER_SECONDS)
+                    .entity(g.toJson(errorResult)).build();
+        }
+
         Transaction txn = datastore.newTransaction();
         try {
             Key userKey = datastore.newKeyFactory().setKind(KIND_USER).newKey(data.userID);
@@ -76,12 +91,17 @@ public class RegisterResource {
                 txn.rollback();
                 LOG.warning("Registration conflict: User '" + data.userID + "' already exists.");
                 return Response.status(Status.CONFLICT).entity("UserID already exists.").build();
+            } else if (UserEmailIndex.owner(datastore, txn, data.email) != null) {
+                txn.rollback();
+                LOG.warning("Registration conflict: Email '" + data.email + "' is already registered.");
+                OpResult result = new OpResult(OPERATION_NAME, data, null, "Email already registered.");
+                return Response.status(Status.CONFLICT).entity(g.toJson(result)).build();
             } else {
                 user = Entity.newBuilder(userKey)
                         .set(FIELD_NAME, data.name)
                         .set(FIELD_EMAIL, data.email)
                         .set(FIELD_PHONE, data.phone)
-                        .set(FIELD_PASSWORD, DigestUtils.sha512Hex(data.password))
+                        .set(FIELD_PASSWORD, passwordHash)
                         .set(FIELD_ROLE, DEFAULT_ROLE)
                         .set(FIELD_STATE, DEFAULT_STATE)
                         .set(FIELD_PROFILE, data.profile != null ? data.profile : "public")
@@ -103,7 +123,7 @@ public class RegisterResource {
                         .set("user_stats_failed", 0L)
                         .build();
 
-                txn.put(user, stats);
+                txn.put(user, stats, UserEmailIndex.entry(datastore, data.email, data.userID));
                 txn.commit();
 
                 OpResult result = new OpResult(OPERATION_NAME, data, null, "User registered successfully.");
@@ -2,15 +2,20 @@ package pt.unl.fct.di.apdc.firstwebapp.resources;
 
 import com.google.cloud.datastore.*;
 import com.google.gson.Gson;
-import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
-import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy;
 import pt.unl.fct.di.apdc.firstwebapp.util.RemoveData;
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
 import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserEmailIndex;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
 import java.util.logging.Logger;
 
 @Path("/remove")
@@ -19,10 +24,8 @@ public class RemoveResource {
 
     private final Gson g = new Gson();
     private static final Logger LOG = Logger.getLogger(RemoveResource.class.getName());
-    private final Datastore datastore = DatastoreOptions.newBuilder()
-            .setProjectId("projetoadc-456513")
-            .build()
-            .getService();
+    @Inject
+    private Datastore datastore;
 
     private static final String OPERATION_NAME = "OP5 - removeUser"; // Corrected operation name
     private static final String KIND_USER = "User";
@@ -31,27 +34,18 @@ public class RemoveResource {
 
     @POST
     @Path("/")
+    @Secured
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response removeUser(RemoveData data, @HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
+    public Response removeUser(RemoveData data, @Context SecurityContext securityContext) {
 
         if (!data.isValid()) {
             OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Missing or wrong parameter (must provide userID or email to remove).");
             return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
         }
 
-        String tokenID = AuthUtil.extractTokenID(authHeader);
-        if (tokenID == null) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Missing or invalid token.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-
-        Entity requestingUser = AuthUtil.validateToken(datastore, tokenID);
-        if (requestingUser == null) {
-            LOG.warning("Remove user request with invalid or expired token: " + tokenID);
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "Invalid or expired token.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        String loggedInUsername = requestingUser.getKey().getName();
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+        String loggedInUsername = requestingUser.getUsername();
 
         if (!loggedInUsername.equals(data.userID1)) {
             OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "Unauthorized: Token does not match initiating user.");
@@ -67,15 +61,11 @@ public class RemoveResource {
                 targetKey = datastore.newKeyFactory().setKind(KIND_USER).newKey(data.userID2);
                 targetUser = txn.get(targetKey);
             } else if (data.email != null && !data.email.trim().isEmpty()) {
-                Query<Entity> query = Query.newEntityQueryBuilder()
-                        .setKind(KIND_USER)
-                        .setFilter(PropertyFilter.eq(FIELD_EMAIL, data.email))
-                        .setLimit(1) // Assuming emails are unique
-                        .build();
-                QueryResults<Entity> results = txn.run(query);
-                if (results.hasNext()) {
-                    targetUser = results.next();
-                    targetKey = targetUser.getKey();
+                // Accounts created before the UserEmail lookup existed are found by query until the backfill has run
+                String emailOwner = UserEmailIndex.owner(datastore, txn, data.email);
+                if (emailOwner != null) {
+                    targetKey = datastore.newKeyFactory().setKind(KIND_USER).newKey(emailOwner);
+                    targetUser = txn.get(targetKey);
                 }
             }
 
@@ -85,21 +75,30 @@ public class RemoveResource {
                 return Response.status(Status.CONFLICT).entity(g.toJson(errorResult)).build();
             }
 
-            if (!data.authorizeChange(requestingUser.getString(FIELD_ROLE), targetUser.getString(FIELD_ROLE))) {
+            if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.REMOVE_USER, requestingUser.getRole(), targetUser.getString(FIELD_ROLE), false)) {
                 txn.rollback();
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "User doesn't have permission to remove this account.");
                 return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
             }
 
             txn.delete(targetKey);
+            if (targetUser.contains(FIELD_EMAIL)) {
+                Key emailKey = UserEmailIndex.key(datastore, targetUser.getString(FIELD_EMAIL));
+                String emailOwner = UserEmailIndex.lookup(datastore, txn, targetUser.getString(FIELD_EMAIL));
+                if (targetKey.getName().equals(emailOwner)) {
+                    txn.delete(emailKey);
+                }
+            }
 
-            if (loggedInUsername.equals(targetUser.getKey().getName())) { // if user deletes itself.
-                Key tokenToDeleteKey = datastore.newKeyFactory().setKind(AuthUtil.AUTH_TOKEN_KIND).newKey(tokenID);
+            String storedTokenID = AuthUtil.storedTokenID(tokenID);
+            if (loggedInUsername.equals(targetUser.getKey().getName()) && storedTokenID != null) { // if user deletes itself.
+                Key tokenToDeleteKey = datastore.newKeyFactory().setKind(AuthUtil.AUTH_TOKEN_KIND).newKey(storedTokenID);
                 txn.delete(tokenToDeleteKey); // delete the users token.
                 LOG.info("User " + loggedInUsername + " deleted itself and logged out.");
             }
 
             txn.commit();
+            AuthUtil.revokeUserSessions(datastore, targetKey.getName());
 
             OpResult successResult = new OpResult(OPERATION_NAME, data, tokenID, "User Removed with Success");
             return Response.ok(g.toJson(successResult)).build();
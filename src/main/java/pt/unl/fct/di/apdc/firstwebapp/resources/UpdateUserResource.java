@@ -2,17 +2,25 @@ package pt.unl.fct.di.apdc.firstwebapp.resources;
 
 import com.google.cloud.datastore.*;
 import com.google.gson.Gson;
-import org.apache.commons.codec.digest.DigestUtils;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
 import pt.unl.fct.di.apdc.firstwebapp.util.AuthUtil;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy;
+import pt.unl.fct.di.apdc.firstwebapp.util.PasswordHasher;
 import pt.unl.fct.di.apdc.firstwebapp.util.UpdateUserData;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserEmailIndex;
 import pt.unl.fct.di.apdc.firstwebapp.util.OpResult; // Import OpResult
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
-import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
+import java.util.Objects;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 @Path("/updateuser")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
@@ -20,7 +28,8 @@ public class UpdateUserResource {
 
     private static final Logger LOG = Logger.getLogger(UpdateUserResource.class.getName());
     private final Gson g = new Gson();
-    private final Datastore datastore = DatastoreOptions.newBuilder().setProjectId("projetoadc-456513").build().getService();
+    @Inject
+    private Datastore datastore;
 
     private static final String KIND_USER = "User";
     private static final String FIELD_EMAIL = "user_email";
@@ -51,32 +60,43 @@ public class UpdateUserResource {
 
     private static final String OPERATION_NAME = "OP7 - updateUserAttributes"; // Operation Name.
 
+    private static final String[] SESSION_FIELDS = {FIELD_PASSWORD, FIELD_ROLE, FIELD_STATE};
+
+    private static final Pattern EMAIL_PATTERN = Pattern.compile(
+            "^[a-zA-Z0-9_+&*-]+(?:\\.[a-zA-Z0-9_+&*-]+)*@(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,7}$");
+
     @POST
     @Path("/")
+    @Secured
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response updateUserAttributes(UpdateUserData data, @HeaderParam(HttpHeaders.AUTHORIZATION) String authHeader) {
+    public Response updateUserAttributes(UpdateUserData data, @Context SecurityContext securityContext) {
 
-        String tokenID = AuthUtil.extractTokenID(authHeader);
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
         if (data == null || data.targetUserID == null || data.targetUserID.isEmpty()) {
             OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Missing target userID in request body.");
             return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
         }
-        if (tokenID == null) {
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Missing Authorization Bearer token.");
-            return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
-        }
         LOG.fine("Attempting attribute update for target: " + data.targetUserID);
 
-        Entity requestingUser = AuthUtil.validateToken(datastore, tokenID);
-        if (requestingUser == null) {
-            LOG.warning("Update request with invalid or expired token: " + tokenID);
-            OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "Invalid or expired token.");
-            return Response.status(Status.UNAUTHORIZED).entity(g.toJson(errorResult)).build();
-        }
-        String requesterUsername = requestingUser.getKey().getName();
-        String requesterRole = requestingUser.getString(FIELD_ROLE);
+        String requesterUsername = requestingUser.getUsername();
+        String requesterRole = requestingUser.getRole();
         LOG.info("Update request received from user: " + requesterUsername + " (Role: " + requesterRole + ") for target: " + data.targetUserID);
 
+        // Hashed before the transaction opens, so no PBKDF2 derivation runs while it holds its locks
+        String passwordHash = null;
+        if (data.password != null && !data.password.isEmpty()) {
+            try {
+                passwordHash = PasswordHasher.hash(data.password);
+            } catch (PasswordHasher.BusyException e) {
+                LOG.warning("Attribute update rejected for target " + data.targetUserID + ": " + e.getMessage());
+                OpResult errorResult = new OpResult(OPERATION_NAME, data, null, "Server busy, please retry.");
+                return Response.status(Status.SERVICE_UNAVAILABLE)
+                        .header("Retry-After", PasswordHasher.RETRY_AFTER_SECONDS)
+                        .entity(g.toJson(errorResult)).build();
+            }
+        }
+
         Transaction txn = datastore.newTransaction();
         try {
             Key targetKey = datastore.newKeyFactory().setKind(KIND_USER).newKey(data.targetUserID);
@@ -91,7 +111,7 @@ public class UpdateUserResource {
             String targetRole = targetUser.getString(FIELD_ROLE);
             boolean isSelfModification = requesterUsername.equals(data.targetUserID);
 
-            if (!UpdateUserData.canTarget(requesterRole, targetRole, isSelfModification)) {
+            if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.UPDATE_USER, requesterRole, targetRole, isSelfModification)) {
                 txn.rollback();
                 LOG.warning("Authorization failed: User " + requesterUsername + " (Role: " + requesterRole + ") cannot modify user " + data.targetUserID + " (Role: " + targetRole + ").");
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "User does not have permission to modify the target user.");
@@ -99,7 +119,7 @@ public class UpdateUserResource {
             }
 
             // Check if the target user is active (ignore if admin)
-            if (!requesterRole.equals(ROLE_ADMIN) && targetUser.contains(FIELD_STATE) && !STATE_ACTIVE.equalsIgnoreCase(targetUser.getString(FIELD_STATE))) {
+            if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.UPDATE_INACTIVE_USER, requesterRole) && targetUser.contains(FIELD_STATE) && !STATE_ACTIVE.equalsIgnoreCase(targetUser.getString(FIELD_STATE))) {
                 txn.rollback();
                 LOG.warning("Modification not allowed: Target user '" + data.targetUserID + "' is not active.");
                 OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "Cannot modify attributes of an inactive user (unless you are an admin).");
@@ -114,8 +134,8 @@ public class UpdateUserResource {
                 if (isSelfModification) {
                     if (data.profile != null) { builder.set(FIELD_PROFILE, data.profile); modified = true; }
                     if (data.phone != null) { builder.set(FIELD_PHONE, data.phone); modified = true; }
-                    if (data.password != null && !data.password.isEmpty()) {
-                        builder.set(FIELD_PASSWORD, DigestUtils.sha512Hex(data.password)); modified = true;
+                    if (passwordHash != null) {
+                        builder.set(FIELD_PASSWORD, passwordHash); modified = true;
                     }
                     if (data.isPublic != null) { builder.set(FIELD_IS_PUBLIC, data.isPublic); modified = true; }
                     if (data.occupation != null) { builder.set(FIELD_OCCUPATION, data.occupation); modified = true; }
@@ -135,8 +155,8 @@ public class UpdateUserResource {
                 if (ROLE_ENDUSER.equals(targetRole) || ROLE_PARTNER.equals(targetRole)) {
                     if (data.profile != null) { builder.set(FIELD_PROFILE, data.profile); modified = true; }
                     if (data.phone != null) { builder.set(FIELD_PHONE, data.phone); modified = true; }
-                    if (data.password != null && !data.password.isEmpty()) {
-                        builder.set(FIELD_PASSWORD, DigestUtils.sha512Hex(data.password)); modified = true;
+                    if (passwordHash != null) {
+                        builder.set(FIELD_PASSWORD, passwordHash); modified = true;
                     }
                     if (data.isPublic != null) { builder.set(FIELD_IS_PUBLIC, data.isPublic); modified = true; }
                     if (data.occupation != null) { builder.set(FIELD_OCCUPATION, data.occupation); modified = true; }
@@ -155,8 +175,8 @@ public class UpdateUserResource {
             } else if (requesterRole.equals(ROLE_ADMIN)) {
                 if (data.profile != null) { builder.set(FIELD_PROFILE, data.profile); modified = true; }
                 if (data.phone != null) { builder.set(FIELD_PHONE, data.phone); modified = true; }
-                if (data.password != null && !data.password.isEmpty()) {
-                    builder.set(FIELD_PASSWORD, DigestUtils.sha512Hex(data.password)); modified = true;
+                if (passwordHash != null) {
+                    builder.set(FIELD_PASSWORD, passwordHash); modified = true;
                 }
                 if (data.isPublic != null) { builder.set(FIELD_IS_PUBLIC, data.isPublic); modified = true; }
                 if (data.occupation != null) { builder.set(FIELD_OCCUPATION, data.occupation); modified = true; }
@@ -192,9 +212,42 @@ public class UpdateUserResource {
                 if (data.workplaceNif != null) { builder.set(FIELD_EMPLOYER_NIF, data.workplaceNif); modified = true; } // New attribute for ADMIN
             }
 
+            // Email changes keep the UserEmail lookup entity in the same transaction
+            String currentEmail = targetUser.contains(FIELD_EMAIL) ? targetUser.getString(FIELD_EMAIL) : null;
+            if (data.email != null && !data.email.equals(currentEmail)) {
+                if (!EMAIL_PATTERN.matcher(data.email).matches()) {
+                    txn.rollback();
+                    OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "Invalid email format.");
+                    return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
+                }
+                String emailOwner = UserEmailIndex.owner(datastore, txn, data.email);
+                if (emailOwner != null && !emailOwner.equals(data.targetUserID)) {
+                    txn.rollback();
+                    LOG.warning("Attribute update failed: Email " + data.email + " is already registered.");
+                    OpResult errorResult = new OpResult(OPERATION_NAME, data, tokenID, "Email already registered.");
+                    return Response.status(Status.CONFLICT).entity(g.toJson(errorResult)).build();
+                }
+                if (currentEmail != null && !UserEmailIndex.normalize(currentEmail).equals(UserEmailIndex.normalize(data.email))) {
+                    txn.delete(UserEmailIndex.key(datastore, currentEmail));
+                }
+                txn.put(UserEmailIndex.entry(datastore, data.email, data.targetUserID));
+                builder.set(FIELD_EMAIL, data.email);
+                modified = true;
+            }
+
             if (modified) {
-                txn.put(builder.build());
+                Entity updatedUser = builder.build();
+                boolean revokeSessions = changesSessionAttributes(targetUser, updatedUser);
+                if (revokeSessions) {
+                    updatedUser = AuthUtil.bumpTokenGeneration(Entity.newBuilder(updatedUser), targetUser).build();
+                }
+                txn.put(updatedUser);
                 txn.commit();
+                if (revokeSessions) {
+                    AuthUtil.revokeUserSessions(datastore, data.targetUserID);
+                } else {
+                    AuthUtil.invalidateUser(data.targetUserID);
+                }
                 LOG.info("Successfully updated attributes for user: " + data.targetUserID + " by user: " + requesterUsername);
                 OpResult successResult = new OpResult(OPERATION_NAME, data, null, "User attributes updated successfully.");
                 return Response.ok(g.toJson(successResult)).build();
@@ -214,4 +267,16 @@ public class UpdateUserResource {
             if (txn.isActive()) txn.rollback();
         }
     }
+
+    // Role, state and password changes end the user's existing sessions
+    private static boolean changesSessionAttributes(Entity before, Entity after) {
+        for (String field : SESSION_FIELDS) {
+            Object oldValue = before.contains(field) ? before.getValue(field) : null;
+            Object newValue = after.contains(field) ? after.getValue(field) : null;
+            if (!Objects.equals(oldValue, newValue)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
\ No newline at end of file
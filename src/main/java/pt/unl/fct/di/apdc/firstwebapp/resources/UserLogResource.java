@@ -0,0 +1,124 @@
+package pt.unl.fct.di.apdc.firstwebapp.resources;
+
+import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.gson.Gson;
+import pt.unl.fct.di.apdc.firstwebapp.filters.Secured;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy;
+import pt.unl.fct.di.apdc.firstwebapp.util.GeoHash;
+import pt.unl.fct.di.apdc.firstwebapp.util.OpResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.PageResult;
+import pt.unl.fct.di.apdc.firstwebapp.util.PagedQuery;
+import pt.unl.fct.di.apdc.firstwebapp.util.UserPrincipal;
+
+import jakarta.inject.Inject;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.SecurityContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Lookups over the login records (UserLog) written by LoginResource.
+ */
+@Path("/userlog")
+@Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
+public class UserLogResource {
+
+    private static final Logger LOG = Logger.getLogger(UserLogResource.class.getName());
+    private final Gson g = new Gson();
+    @Inject
+    private Datastore datastore;
+
+    private static final String KIND_USER_LOG = "UserLog";
+    private static final String FIELD_LATLON = "user_login_latlon";
+    private static final String FIELD_TIME = "user_login_time";
+    private static final String[] SHOWN_STRING_FIELDS = {
+            "user_login_ip", "user_login_host", "user_login_city", "user_login_country", FIELD_LATLON
+    };
+
+    private static final String OPERATION_NAME_NEAR = "OP11 - loginsNear";
+
+    /**
+     * Lists the logins made from inside a circle (lat, lon, radius in meters) or a bounding box
+     * (minLat, minLon, maxLat, maxLon), as located by the X-AppEngine-CityLatLong header. Read with
+     * one equality query per covering geohash cell; a page may hold fewer than pageSize logins
+     * while nextCursor is still set, since results outside the exact area are dropped.
+     */
+    @POST
+    @Path("/near")
+    @Secured
+    public Response loginsNear(@Context SecurityContext securityContext,
+                               @QueryParam("lat") Double lat, @QueryParam("lon") Double lon,
+                               @QueryParam("radius") Double radius,
+                               @QueryParam("minLat") Double minLat, @QueryParam("minLon") Double minLon,
+                               @QueryParam("maxLat") Double maxLat, @QueryParam("maxLon") Double maxLon,
+                               @QueryParam("pageSize") Integer pageSize, @QueryParam("cursor") String cursor) {
+        UserPrincipal requestingUser = (UserPrincipal) securityContext.getUserPrincipal();
+        String tokenID = requestingUser.getTokenID();
+
+        if (!AuthorizationPolicy.isAllowed(AuthorizationPolicy.Action.SEARCH_BY_LOCATION, requestingUser.getRole())) {
+            OpResult errorResult = new OpResult(OPERATION_NAME_NEAR, null, tokenID, "Only BACKOFFICE or ADMIN can search by location.");
+            return Response.status(Status.FORBIDDEN).entity(g.toJson(errorResult)).build();
+        }
+
+        GeoHash.Area area;
+        List<EntityQuery.Builder> segments = new ArrayList<>();
+        try {
+            area = GeoHash.Area.of(lat, lon, radius, minLat, minLon, maxLat, maxLon);
+            for (String cell : area.cells()) {
+                segments.add(Query.newEntityQueryBuilder().setKind(KIND_USER_LOG).setFilter(PropertyFilter.eq(area.property(), cell)));
+            }
+        } catch (IllegalArgumentException e) {
+            OpResult errorResult = new OpResult(OPERATION_NAME_NEAR, null, tokenID, e.getMessage());
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
+        }
+
+        PagedQuery.Page<Entity> page;
+        try {
+            page = PagedQuery.fetch(datastore, segments, PagedQuery.pageSize(pageSize), cursor);
+        } catch (IllegalArgumentException e) {
+            OpResult errorResult = new OpResult(OPERATION_NAME_NEAR, null, tokenID, "Invalid pagination cursor.");
+            return Response.status(Status.BAD_REQUEST).entity(g.toJson(errorResult)).build();
+        } catch (DatastoreException e) {
+            LOG.severe("Error listing logins by location: " + e.getMessage());
+            OpResult errorResult = new OpResult(OPERATION_NAME_NEAR, null, tokenID, "Failed to list logins.");
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(g.toJson(errorResult)).build();
+        }
+
+        List<Map<String, Object>> logins = new ArrayList<>(page.items.size());
+        for (Entity log : page.items) {
+            double[] location = GeoHash.parseLatLon(log.contains(FIELD_LATLON) ? log.getString(FIELD_LATLON) : null);
+            if (location != null && area.contains(location[0], location[1])) {
+                logins.add(loginToMap(log));
+            }
+        }
+        LOG.fine("Listed " + logins.size() + " logins by location for user: " + requestingUser.getUsername());
+        return Response.ok(g.toJson(new PageResult(logins, page.nextCursor))).build();
+    }
+
+    // The token the login created is left out
+    private Map<String, Object> loginToMap(Entity log) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("username", log.getKey().getParent().getName());
+        if (log.contains(FIELD_TIME)) {
+            map.put(FIELD_TIME, log.getTimestamp(FIELD_TIME).toString());
+        }
+        for (String field : SHOWN_STRING_FIELDS) {
+            if (log.contains(field)) {
+                map.put(field, log.getString(field));
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,59 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import java.util.logging.Logger;
+
+/**
+ * Reads application settings from JVM system properties (see appengine-web.xml),
+ * falling back to environment variables and then to the given default.
+ * The environment variable name is the property name upper-cased with dots replaced
+ * by underscores (e.g. "apdc.datastore.projectId" -> "APDC_DATASTORE_PROJECTID").
+ */
+public class AppConfig {
+
+    private static final Logger LOG = Logger.getLogger(AppConfig.class.getName());
+
+    private AppConfig() {}
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(key.toUpperCase().replace('.', '_'));
+        }
+        return (value == null || value.isEmpty()) ? defaultValue : value.trim();
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid numeric value for setting " + key + ": " + value + ". Using default " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid numeric value for setting " + key + ": " + value + ". Using default " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -1,14 +1,17 @@
 package pt.unl.fct.di.apdc.firstwebapp.util;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.UUID;
 
 public class AuthToken {
 
     // Keep expiration time configurable maybe, but 2 hours is fine for example
     public static final long EXPIRATION_TIME = 1000 * 60 * 60 * 2; // 2 hours in milliseconds
+    private static final char TOKEN_ID_SEPARATOR = '.';
 
     public String username;
-    public String tokenID; // The unique ID for this token instance (UUID)
+    public String tokenID; // The unique ID for this token instance (<base64url username>.<UUID>)
     public String role; // Role of the user at the time of token creation
     public long creationData; // Use standard Java naming convention (creationDate)
     public long expirationData; // Use standard Java naming convention (expirationDate)
@@ -18,12 +21,36 @@ public class AuthToken {
     public AuthToken(String username, String role) {
         this.username = username;
         this.role = role;
-        this.tokenID = UUID.randomUUID().toString();
+        this.tokenID = newTokenID(username);
         this.verifier = UUID.randomUUID().toString(); // Use another UUID as a simple verifier
         this.creationData = System.currentTimeMillis();
         this.expirationData = this.creationData + EXPIRATION_TIME;
     }
 
+    /**
+     * Builds a token ID that carries its owner, so the AuthToken and User keys are both known
+     * before any lookup. The username is base64url-encoded, so the separator can never clash with it.
+     */
+    public static String newTokenID(String username) {
+        String encodedUser = Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8));
+        return encodedUser + TOKEN_ID_SEPARATOR + UUID.randomUUID();
+    }
+
+    /**
+     * @return The username embedded in the token ID, or null for legacy (plain UUID) or malformed IDs.
+     */
+    public static String usernameFromTokenID(String tokenID) {
+        int sep = tokenID == null ? -1 : tokenID.indexOf(TOKEN_ID_SEPARATOR);
+        if (sep <= 0) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(tokenID.substring(0, sep)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     // Default constructor for frameworks that might need it (like some JSON libraries)
     public AuthToken() {}
 
@@ -1,33 +1,75 @@
 package pt.unl.fct.di.apdc.firstwebapp.util;
 
 import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
-import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.KeyQuery;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class AuthUtil {
 
     private static final Logger LOG = Logger.getLogger(AuthUtil.class.getName());
     public static final String AUTH_TOKEN_KIND = "AuthToken"; // Kind name for storing tokens
+    private static final String KIND_USER = "User";
 
     /**
-     * Validates a token ID and retrieves the corresponding User entity if valid.
-     * Checks for existence and expiration.
+     * Counter on the User entity, copied onto each AuthToken at login. Incrementing it (role,
+     * state or password change) invalidates every token issued before, in the same transaction.
+     */
+    public static final String FIELD_TOKEN_GENERATION = "user_token_generation";
+
+    private static final int DELETE_BATCH_SIZE = 500;
+
+    /**
+     * Validates a token ID and resolves the user it belongs to.
+     * Checks for existence and expiration. Signed (stateless) tokens are checked in memory
+     * against their HMAC and the revocation list. Stored token IDs carry their owner's username, so the
+     * AuthToken and User entities are fetched together in one batched get; legacy UUID-only
+     * tokens fall back to two sequential gets. Successful validations of ENDUSER and PARTNER
+     * tokens are kept in the TokenCache, so repeated calls with the same token skip Datastore
+     * for a few seconds; BACKOFFICE and ADMIN tokens are checked against Datastore every time.
      *
      * @param datastore The Datastore service instance.
      * @param tokenID The token ID string to validate.
-     * @return The User Entity if the token is valid, null otherwise.
+     * @return The authenticated user if the token is valid, null otherwise.
      */
-    public static Entity validateToken(Datastore datastore, String tokenID) {
+    public static UserPrincipal validateToken(Datastore datastore, String tokenID) {
         if (tokenID == null || tokenID.isEmpty()) {
             LOG.fine("Token validation attempt with null or empty tokenID.");
             return null;
         }
 
+        if (TokenSigner.isSignedToken(tokenID)) {
+            return validateSignedToken(tokenID);
+        }
+
+        UserPrincipal cached = TokenCache.get(tokenID);
+        if (cached != null) {
+            return cached;
+        }
+
         Key tokenKey = datastore.newKeyFactory().setKind(AUTH_TOKEN_KIND).newKey(tokenID);
-        Entity tokenEntity = datastore.get(tokenKey);
+        Entity tokenEntity;
+        Entity userEntity;
+
+        String embeddedUsername = AuthToken.usernameFromTokenID(tokenID);
+        if (embeddedUsername != null) {
+            Key userKey = datastore.newKeyFactory().setKind(KIND_USER).newKey(embeddedUsername);
+            List<Entity> entities = datastore.fetch(tokenKey, userKey);
+            tokenEntity = entities.get(0);
+            userEntity = entities.get(1);
+        } else {
+            tokenEntity = datastore.get(tokenKey);
+            userEntity = null;
+        }
 
         if (tokenEntity == null) {
             LOG.warning("Token validation failed: Token not found - " + tokenID);
@@ -46,16 +88,126 @@ public class AuthUtil {
             return null;
         }
 
-        Key userKey = datastore.newKeyFactory().setKind("User").newKey(username);
-        Entity userEntity = datastore.get(userKey);
+        if (embeddedUsername == null) {
+            Key userKey = datastore.newKeyFactory().setKind(KIND_USER).newKey(username);
+            userEntity = datastore.get(userKey);
+        } else if (!embeddedUsername.equals(username)) {
+            LOG.severe("Token validation error: Token " + tokenID + " is stored for user " + username + " but names " + embeddedUsername + ".");
+            return null;
+        }
 
         if (userEntity == null) {
             LOG.severe("Token validation error: User " + username + " associated with valid token " + tokenID + " not found.");
             return null;
         }
 
+        long tokenGeneration = tokenEntity.contains(FIELD_TOKEN_GENERATION) ? tokenEntity.getLong(FIELD_TOKEN_GENERATION) : 0L;
+        if (tokenGeneration != tokenGeneration(userEntity)) {
+            LOG.warning("Token validation failed: Token " + tokenID + " was revoked by a change to user " + username + ".");
+            return null;
+        }
+
+        UserPrincipal principal = UserPrincipal.fromUserEntity(userEntity, tokenID, tokenEntity.getLong("creation_date"),
+                expirationDate, tokenEntity.contains("verifier") ? tokenEntity.getString("verifier") : null);
+        TokenCache.put(tokenID, principal);
         LOG.fine("Token validated successfully for user: " + username);
-        return userEntity;
+        return principal;
+    }
+
+    private static UserPrincipal validateSignedToken(String tokenID) {
+        TokenSigner.Claims claims = TokenSigner.verify(tokenID);
+        if (claims == null) {
+            LOG.warning("Token validation failed: Invalid or expired signed token.");
+            return null;
+        }
+        if (TokenRevocationList.isRevoked(claims)) {
+            LOG.warning("Token validation failed: Signed token revoked - " + claims.jti);
+            return null;
+        }
+        return claims.toPrincipal(tokenID);
+    }
+
+    /**
+     * @return The name of the AuthToken entity behind a token: the jti for signed tokens,
+     * the token ID itself otherwise. Null if a signed token does not verify.
+     */
+    public static String storedTokenID(String tokenID) {
+        if (TokenSigner.isSignedToken(tokenID)) {
+            TokenSigner.Claims claims = TokenSigner.verify(tokenID);
+            return claims == null ? null : claims.jti;
+        }
+        return tokenID;
+    }
+
+    /**
+     * @return The user's current token generation (0 for users that never had one).
+     */
+    public static long tokenGeneration(Entity user) {
+        return user.contains(FIELD_TOKEN_GENERATION) ? user.getLong(FIELD_TOKEN_GENERATION) : 0L;
+    }
+
+    /**
+     * Advances the token generation of a user being rewritten, so tokens issued before stop
+     * validating once the transaction commits. Call revokeUserSessions after the commit.
+     */
+    public static Entity.Builder bumpTokenGeneration(Entity.Builder builder, Entity user) {
+        return builder.set(FIELD_TOKEN_GENERATION, tokenGeneration(user) + 1);
+    }
+
+    /**
+     * Revokes every session of a user (account removal, role, state or password change): signed
+     * tokens through the revocation list, cached validations through the cache, and the stored
+     * AuthToken entities with one keys-only query and batched deletes.
+     */
+    public static void revokeUserSessions(Datastore datastore, String username) {
+        if (TokenSigner.isEnabled()) {
+            TokenRevocationList.revokeUser(datastore, username);
+        }
+        invalidateUser(username);
+        deleteUserTokens(datastore, username);
+    }
+
+    // Best effort: the token generation (or the missing user) already makes these tokens invalid
+    private static void deleteUserTokens(Datastore datastore, String username) {
+        KeyQuery query = Query.newKeyQueryBuilder()
+                .setKind(AUTH_TOKEN_KIND)
+                .setFilter(PropertyFilter.eq("user_username", username))
+                .build();
+        try {
+            QueryResults<Key> results = datastore.run(query);
+            List<Key> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+            int deleted = 0;
+            while (results.hasNext()) {
+                batch.add(results.next());
+                if (batch.size() == DELETE_BATCH_SIZE) {
+                    datastore.delete(batch.toArray(new Key[0]));
+                    deleted += batch.size();
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                datastore.delete(batch.toArray(new Key[0]));
+                deleted += batch.size();
+            }
+            LOG.fine("Deleted " + deleted + " stored tokens of user " + username + ".");
+        } catch (DatastoreException e) {
+            LOG.log(Level.WARNING, "Failed to delete stored tokens of user " + username + ".", e);
+        }
+    }
+
+    /**
+     * Must be called whenever a token is deleted (logout), so it stops working immediately.
+     */
+    public static void invalidateToken(String tokenID) {
+        TokenCache.invalidate(tokenID);
+    }
+
+    /**
+     * Must be called after a user's role, state or password changes or the account is removed,
+     * so cached validations of that user's tokens are dropped.
+     */
+    public static void invalidateUser(String username) {
+        TokenCache.invalidateUser(username);
     }
 
     /**
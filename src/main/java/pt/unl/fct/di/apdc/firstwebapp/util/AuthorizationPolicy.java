@@ -0,0 +1,166 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+/**
+ * All role-based authorization rules of the application in one place. The rules are declared in
+ * the static block below and compiled into boolean tables indexed by enum ordinals, so a check is
+ * a few array reads: no string building, no allocation. Role and state names are matched
+ * case-insensitively; unknown names are always denied.
+ */
+public final class AuthorizationPolicy {
+
+    public enum Role {
+        ENDUSER, PARTNER, BACKOFFICE, ADMIN;
+
+        private static final Role[] VALUES = values();
+
+        public static Role of(String name) {
+            if (name != null) {
+                for (Role role : VALUES) {
+                    if (role.name().equalsIgnoreCase(name)) {
+                        return role;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum State {
+        ACTIVE, INACTIVE, SUSPENDED;
+
+        private static final State[] VALUES = values();
+
+        public static State of(String name) {
+            if (name != null) {
+                for (State state : VALUES) {
+                    if (state.name().equalsIgnoreCase(name)) {
+                        return state;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum Action {
+        // Decided by the actor's role alone
+        LIST_USERS, EXPORT_USERS, READ_METRICS, UPDATE_INACTIVE_USER,
+        CREATE_WORKSHEET, ADJUDICATE_WORKSHEET, UPDATE_WORK_STATUS, LIST_WORKSHEETS,
+        READ_WORKSHEET_STATS, READ_WORKSHEET_HISTORY, SEARCH_BY_LOCATION, READ_PARTNER_INBOX,
+        READ_OWN_WORKSHEET_HISTORY,
+        // Decided by the actor's role and the target user's role
+        UPDATE_USER, REMOVE_USER,
+        // Decided by the actor's role, the target's role and the requested role (see canChangeRole)
+        CHANGE_ROLE,
+        // Decided by the actor's role, the target's state and the requested state (see canChangeState)
+        CHANGE_STATE
+    }
+
+    private static final int ROLES = Role.values().length;
+    private static final int STATES = State.values().length;
+    private static final int ACTIONS = Action.values().length;
+
+    private static final boolean[][] BY_ACTOR = new boolean[ACTIONS][ROLES];
+    private static final boolean[][][] BY_TARGET = new boolean[ACTIONS][ROLES][ROLES];
+    private static final boolean[][][] ROLE_CHANGES = new boolean[ROLES][ROLES][ROLES];
+    private static final boolean[][][] STATE_CHANGES = new boolean[ROLES][STATES][STATES];
+
+    static {
+        allow(Action.LIST_USERS, Role.ENDUSER, Role.BACKOFFICE, Role.ADMIN);
+        allow(Action.EXPORT_USERS, Role.BACKOFFICE, Role.ADMIN);
+        allow(Action.READ_METRICS, Role.ADMIN);
+        allow(Action.UPDATE_INACTIVE_USER, Role.ADMIN);
+        allow(Action.CREATE_WORKSHEET, Role.BACKOFFICE, Role.ADMIN);
+        allow(Action.ADJUDICATE_WORKSHEET, Role.BACKOFFICE, Role.ADMIN);
+        allow(Action.UPDATE_WORK_STATUS, Role.PARTNER);
+        allow(Action.LIST_WORKSHEETS, Role.PARTNER, Role.BACKOFFICE, Role.ADMIN);
+        allow(Action.READ_WORKSHEET_STATS, Role.BACKOFFICE, Role.ADMIN);
+        allow(Action.READ_WORKSHEET_HISTORY, Role.BACKOFFICE, Role.ADMIN);
+        allow(Action.SEARCH_BY_LOCATION, Role.BACKOFFICE, Role.ADMIN);
+        allow(Action.READ_PARTNER_INBOX, Role.PARTNER);
+        allow(Action.READ_OWN_WORKSHEET_HISTORY, Role.PARTNER);
+
+        allowOn(Action.UPDATE_USER, Role.BACKOFFICE, Role.ENDUSER, Role.PARTNER);
+        allowOn(Action.UPDATE_USER, Role.ADMIN, Role.values());
+        allowOn(Action.REMOVE_USER, Role.BACKOFFICE, Role.ENDUSER, Role.PARTNER);
+        allowOn(Action.REMOVE_USER, Role.ADMIN, Role.values());
+
+        allowRoleChange(Role.BACKOFFICE, Role.ENDUSER, Role.PARTNER);
+        allowRoleChange(Role.BACKOFFICE, Role.PARTNER, Role.ENDUSER);
+        for (Role target : Role.values()) {
+            for (Role newRole : Role.values()) {
+                allowRoleChange(Role.ADMIN, target, newRole);
+            }
+        }
+
+        allowStateChange(Role.BACKOFFICE, State.INACTIVE, State.ACTIVE);
+        allowStateChange(Role.BACKOFFICE, State.ACTIVE, State.INACTIVE);
+        for (State from : State.values()) {
+            for (State to : State.values()) {
+                allowStateChange(Role.ADMIN, from, to);
+            }
+        }
+    }
+
+    private AuthorizationPolicy() {}
+
+    private static void allow(Action action, Role... actors) {
+        for (Role actor : actors) {
+            BY_ACTOR[action.ordinal()][actor.ordinal()] = true;
+        }
+    }
+
+    private static void allowOn(Action action, Role actor, Role... targets) {
+        for (Role target : targets) {
+            BY_TARGET[action.ordinal()][actor.ordinal()][target.ordinal()] = true;
+        }
+    }
+
+    private static void allowRoleChange(Role actor, Role target, Role newRole) {
+        ROLE_CHANGES[actor.ordinal()][target.ordinal()][newRole.ordinal()] = true;
+    }
+
+    private static void allowStateChange(Role actor, State from, State to) {
+        STATE_CHANGES[actor.ordinal()][from.ordinal()][to.ordinal()] = true;
+    }
+
+    /**
+     * Actions decided by the actor's role alone.
+     */
+    public static boolean isAllowed(Action action, String actorRole) {
+        Role actor = Role.of(actorRole);
+        return actor != null && BY_ACTOR[action.ordinal()][actor.ordinal()];
+    }
+
+    /**
+     * Actions on another user, decided by both roles. Users may always act on themselves
+     * when {@code self} is true.
+     */
+    public static boolean isAllowed(Action action, String actorRole, String targetRole, boolean self) {
+        Role actor = Role.of(actorRole);
+        if (actor == null) {
+            return false;
+        }
+        if (self) {
+            return true;
+        }
+        Role target = Role.of(targetRole);
+        return target != null && BY_TARGET[action.ordinal()][actor.ordinal()][target.ordinal()];
+    }
+
+    public static boolean canChangeRole(String actorRole, String targetRole, String newRole) {
+        Role actor = Role.of(actorRole);
+        Role target = Role.of(targetRole);
+        Role requested = Role.of(newRole);
+        return actor != null && target != null && requested != null
+                && ROLE_CHANGES[actor.ordinal()][target.ordinal()][requested.ordinal()];
+    }
+
+    public static boolean canChangeState(String actorRole, String currentState, String newState) {
+        Role actor = Role.of(actorRole);
+        State from = State.of(currentState);
+        State to = State.of(newState);
+        return actor != null && from != null && to != null
+                && STATE_CHANGES[actor.ordinal()][from.ordinal()][to.ordinal()];
+    }
+}
@@ -35,26 +35,4 @@ public class ChangeRoleData {
     private boolean isValidRole(String role) {
         return role != null && VALID_ROLES.contains(role.toUpperCase());
     }
-
-    public boolean authorizeChange(String userOneRole, String userTwoRole) {
-        if (userOneRole == null || userTwoRole == null || !isValidRole(this.newRole)) {
-            return false;
-        }
-
-        String u1RoleUpper = userOneRole.toUpperCase();
-        String u2RoleUpper = userTwoRole.toUpperCase();
-        String newRoleUpper = this.newRole.toUpperCase();
-
-        if (u1RoleUpper.equals(ROLE_ADMIN)) {
-            return true;
-        }
-
-        if (u1RoleUpper.equals(ROLE_BACKOFFICE)) {
-            boolean isEndUserToPartner = u2RoleUpper.equals(ROLE_ENDUSER) && newRoleUpper.equals(ROLE_PARTNER);
-            boolean isPartnerToEndUser = u2RoleUpper.equals(ROLE_PARTNER) && newRoleUpper.equals(ROLE_ENDUSER);
-            return isEndUserToPartner || isPartnerToEndUser;
-        }
-
-        return false;
-    }
 }
\ No newline at end of file
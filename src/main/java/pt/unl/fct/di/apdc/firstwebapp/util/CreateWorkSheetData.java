@@ -7,6 +7,10 @@ public class CreateWorkSheetData {
     public String description;
     public String targetType;
 
+    // Optional location of the work (both or neither)
+    public Double latitude;
+    public Double longitude;
+
     // Attributes for adjudication
     public String adjudicationDate;
     public String startDate;
@@ -53,7 +57,12 @@ public class CreateWorkSheetData {
         return reference != null && !reference.trim().isEmpty() &&
                 description != null && !description.trim().isEmpty() &&
                 targetType != null && !targetType.trim().isEmpty() &&
-                (targetType.equals("Propriedade Pública") || targetType.equals("Propriedade Privada"));
+                (targetType.equals("Propriedade Pública") || targetType.equals("Propriedade Privada")) &&
+                ((latitude == null && longitude == null) || hasLocation());
+    }
+
+    public boolean hasLocation() {
+        return latitude != null && longitude != null && GeoHash.isValid(latitude, longitude);
     }
 
     public boolean isValidForAdjudication() {
@@ -0,0 +1,129 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One-off rewrites of data written before a change, run in the background after startup. Each
+ * migration that completes puts a Migration marker entity named after it, so it runs once per
+ * deployment rather than once per instance; one that fails is retried on the next startup.
+ * Instances starting together may run the same migration concurrently, so every migration must
+ * be idempotent. Until isDone() returns true, the code that depends on a migration keeps its
+ * fallback for old data. isDone() re-reads the marker now and then, so an instance also learns of a
+ * migration another instance completed, including when apdc.migrations.enabled is false here.
+ */
+public class DataMigrations {
+
+    private static final Logger LOG = Logger.getLogger(DataMigrations.class.getName());
+
+    private static final String KIND_MIGRATION = "Migration";
+    private static final String FIELD_COMPLETED = "completed_time";
+
+    private static final boolean ENABLED = AppConfig.getBoolean("apdc.migrations.enabled", true);
+    private static final long MARKER_CHECK_MS = AppConfig.getLong("apdc.migrations.markerCheckMs", 30 * 1000);
+
+    // Run in this order, one at a time
+    private static final Map<String, Consumer<Datastore>> MIGRATIONS = new LinkedHashMap<>();
+
+    static {
+        MIGRATIONS.put(UserEmailIndex.BACKFILL, UserEmailIndex::backfill);
+        MIGRATIONS.put(WorkSheetStats.RECOUNT, WorkSheetStats::recount);
+        MIGRATIONS.put(WorkSheetDates.MIGRATION, WorkSheetDates::migrate);
+    }
+
+    private static final Set<String> DONE = ConcurrentHashMap.newKeySet();
+    // When each pending migration's marker was last read by isDone()
+    private static final Map<String, Long> CHECKED = new ConcurrentHashMap<>();
+    private static ExecutorService executor;
+
+    private DataMigrations() {}
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * @return True once this instance has seen the migration's marker or completed it itself. While
+     * it has not, the marker is read again at most every MARKER_CHECK_MS; a positive answer is kept.
+     */
+    public static boolean isDone(Datastore datastore, String name) {
+        if (DONE.contains(name)) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        Long checked = CHECKED.get(name);
+        if (checked != null && now - checked < MARKER_CHECK_MS) {
+            return false;
+        }
+        CHECKED.put(name, now);
+        try {
+            if (datastore.get(markerKey(datastore, name)) != null) {
+                DONE.add(name);
+                return true;
+            }
+        } catch (DatastoreException e) {
+            LOG.log(Level.WARNING, "Could not read the marker of migration " + name + ".", e);
+        }
+        return false;
+    }
+
+    public static synchronized void start(Datastore datastore) {
+        if (!ENABLED || executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "data-migrations");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.execute(() -> {
+            for (Map.Entry<String, Consumer<Datastore>> migration : MIGRATIONS.entrySet()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                run(datastore, migration.getKey(), migration.getValue());
+            }
+        });
+    }
+
+    public static synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private static void run(Datastore datastore, String name, Consumer<Datastore> migration) {
+        Key markerKey = markerKey(datastore, name);
+        try {
+            if (datastore.get(markerKey) != null) {
+                DONE.add(name);
+                return;
+            }
+            long start = System.currentTimeMillis();
+            migration.accept(datastore);
+            datastore.put(Entity.newBuilder(markerKey).set(FIELD_COMPLETED, Timestamp.now()).build());
+            DONE.add(name);
+            LOG.info("Migration " + name + " completed in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Migration " + name + " failed; it will be retried on the next startup.", e);
+        }
+    }
+
+    private static Key markerKey(Datastore datastore, String name) {
+        return datastore.newKeyFactory().setKind(KIND_MIGRATION).newKey(name);
+    }
+}
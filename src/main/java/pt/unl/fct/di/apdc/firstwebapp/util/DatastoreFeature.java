@@ -0,0 +1,26 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.Datastore;
+import jakarta.ws.rs.core.Feature;
+import jakarta.ws.rs.core.FeatureContext;
+import jakarta.ws.rs.ext.Provider;
+import org.glassfish.jersey.internal.inject.AbstractBinder;
+
+/**
+ * Registers the shared Datastore client with HK2 so resources can declare
+ * {@code @Inject private Datastore datastore;} instead of building their own.
+ */
+@Provider
+public class DatastoreFeature implements Feature {
+
+    @Override
+    public boolean configure(FeatureContext context) {
+        context.register(new AbstractBinder() {
+            @Override
+            protected void configure() {
+                bind(DatastoreProvider.get()).to(Datastore.class);
+            }
+        });
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Key;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Application-scoped holder for the Datastore client.
+ * The client is thread-safe and expensive to build (channel setup, credential lookup),
+ * so a single instance is shared by every resource, filter and listener.
+ */
+public class DatastoreProvider {
+
+    private static final Logger LOG = Logger.getLogger(DatastoreProvider.class.getName());
+
+    public static final String PROP_PROJECT_ID = "apdc.datastore.projectId";
+    public static final String PROP_EMULATOR_HOST = "apdc.datastore.emulatorHost";
+    private static final String DEFAULT_PROJECT_ID = "projetoadc-456513";
+
+    private DatastoreProvider() {}
+
+    // Initialization-on-demand holder: built once, on first use, without locking afterwards.
+    private static class Holder {
+        private static final Datastore INSTANCE = create();
+    }
+
+    public static Datastore get() {
+        return Holder.INSTANCE;
+    }
+
+    private static Datastore create() {
+        String projectId = AppConfig.getString(PROP_PROJECT_ID, DEFAULT_PROJECT_ID);
+        String emulatorHost = AppConfig.getString(PROP_EMULATOR_HOST, null);
+
+        DatastoreOptions.Builder builder = DatastoreOptions.newBuilder().setProjectId(projectId);
+        if (emulatorHost != null) {
+            builder.setHost(emulatorHost).setCredentials(NoCredentials.getInstance());
+            LOG.info("Using Datastore emulator at " + emulatorHost + " for project " + projectId);
+        } else {
+            LOG.info("Using Datastore for project " + projectId);
+        }
+        return builder.build().getService();
+    }
+
+    /**
+     * Builds the client and performs one cheap lookup so that the channel and credentials
+     * are ready before the first user request arrives.
+     */
+    public static void warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            Datastore datastore = get();
+            Key probe = datastore.newKeyFactory().setKind("User").newKey("root");
+            datastore.get(probe);
+            LOG.info("Datastore client warmed up in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Datastore warm-up failed, the first request will pay the connection cost.", e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically deletes AuthToken and RevokedToken entities whose expiration_date has passed.
+ * Each kind is read with keys-only queries of BATCH_SIZE keys and deleted one batch per call, up
+ * to apdc.tokensweeper.maxPerRun entities per kind and run; what is left over is reported as
+ * backlog and picked up by the next run.
+ */
+public class ExpiredTokenSweeper {
+
+    private static final Logger LOG = Logger.getLogger(ExpiredTokenSweeper.class.getName());
+
+    private static final String FIELD_EXPIRATION = "expiration_date";
+    private static final String[] KINDS = {AuthUtil.AUTH_TOKEN_KIND, TokenRevocationList.KIND_REVOKED_TOKEN};
+
+    private static final boolean ENABLED = AppConfig.getBoolean("apdc.tokensweeper.enabled", true);
+    private static final long INTERVAL_MS = AppConfig.getLong("apdc.tokensweeper.intervalMs", 60 * 60 * 1000);
+    private static final int MAX_PER_RUN = AppConfig.getInt("apdc.tokensweeper.maxPerRun", 10000);
+    private static final int BATCH_SIZE = 500; // Datastore limit of keys per delete
+
+    private static final AtomicLong TOTAL_DELETED = new AtomicLong();
+    private static volatile long lastRunAt;
+    private static volatile long lastRunDeleted;
+    private static volatile long lastRunMillis;
+    private static volatile boolean backlog;
+
+    private static ScheduledExecutorService scheduler;
+
+    private ExpiredTokenSweeper() {}
+
+    /**
+     * Runs one sweep over every token kind.
+     * @return The number of entities deleted.
+     */
+    public static long sweep(Datastore datastore) {
+        long start = System.currentTimeMillis();
+        long deleted = 0;
+        boolean more = false;
+        for (String kind : KINDS) {
+            long kindDeleted = sweepKind(datastore, kind, start);
+            deleted += kindDeleted;
+            more |= kindDeleted >= MAX_PER_RUN;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        TOTAL_DELETED.addAndGet(deleted);
+        lastRunAt = start;
+        lastRunDeleted = deleted;
+        lastRunMillis = elapsed;
+        backlog = more;
+        LOG.info("Token sweep deleted " + deleted + " expired entities in " + elapsed + " ms"
+                + (more ? " (more pending)." : "."));
+        return deleted;
+    }
+
+    private static long sweepKind(Datastore datastore, String kind, long now) {
+        long deleted = 0;
+        while (deleted < MAX_PER_RUN) {
+            KeyQuery query = Query.newKeyQueryBuilder()
+                    .setKind(kind)
+                    .setFilter(PropertyFilter.lt(FIELD_EXPIRATION, now))
+                    .setLimit((int) Math.min(BATCH_SIZE, MAX_PER_RUN - deleted))
+                    .build();
+            QueryResults<Key> results = datastore.run(query);
+            List<Key> batch = new ArrayList<>(BATCH_SIZE);
+            while (results.hasNext()) {
+                batch.add(results.next());
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            datastore.delete(batch.toArray(new Key[0]));
+            deleted += batch.size();
+            if (batch.size() < BATCH_SIZE) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    public static synchronized void start(Datastore datastore) {
+        if (!ENABLED || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "expired-token-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sweep(datastore);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Expired token sweep failed.", e);
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("enabled", ENABLED);
+        metrics.put("totalDeleted", TOTAL_DELETED.get());
+        metrics.put("lastRunAt", lastRunAt);
+        metrics.put("lastRunDeleted", lastRunDeleted);
+        metrics.put("lastRunMillis", lastRunMillis);
+        metrics.put("lastRunPerSecond", lastRunMillis == 0 ? 0 : lastRunDeleted * 1000 / lastRunMillis);
+        metrics.put("backlog", backlog);
+        return metrics;
+    }
+}
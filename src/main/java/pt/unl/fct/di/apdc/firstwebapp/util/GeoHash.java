@@ -0,0 +1,233 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.BaseEntity;
+import com.google.cloud.datastore.StringValue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Geohash indexing for "what is near here" queries. A located entity gets one indexed property per
+ * precision, geohash_3 to geohash_7, holding the prefix of its geohash at that length. An area
+ * (bounding box or circle) is covered by a few cells of the finest precision whose cells are still
+ * at least as large as the area, so it is read with one equality query per cell on the built-in
+ * single-property index; callers then drop the results outside the exact area.
+ *
+ * Cell sizes at the equator: 3 = 156 x 156 km, 4 = 39 x 20 km, 5 = 4.9 x 4.9 km,
+ * 6 = 1.2 x 0.6 km, 7 = 153 x 153 m. Areas crossing the antimeridian are not supported.
+ */
+public class GeoHash {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+    private static final String PROPERTY_PREFIX = "geohash_";
+    private static final int MIN_PRECISION = 3;
+    private static final int MAX_PRECISION = 7;
+    private static final int MAX_CELLS = 16;
+
+    private static final double METERS_PER_DEGREE = 111_320;
+    private static final double EARTH_RADIUS_METERS = 6_371_000;
+
+    /**
+     * A bounding box, optionally restricted to the circle inscribed in it.
+     */
+    public static class Area {
+        final double minLat, minLon, maxLat, maxLon;
+        final double centerLat, centerLon, radiusMeters; // radiusMeters is 0 for a plain box
+
+        private Area(double minLat, double minLon, double maxLat, double maxLon,
+                     double centerLat, double centerLon, double radiusMeters) {
+            this.minLat = Math.max(-90, minLat);
+            this.minLon = Math.max(-180, minLon);
+            this.maxLat = Math.min(90, maxLat);
+            this.maxLon = Math.min(180, maxLon);
+            this.centerLat = centerLat;
+            this.centerLon = centerLon;
+            this.radiusMeters = radiusMeters;
+        }
+
+        /**
+         * Builds the area of a query from its request parameters: a circle when lat, lon and
+         * radiusMeters are given, otherwise a box.
+         * @throws IllegalArgumentException if neither is given in full or the values are invalid.
+         */
+        public static Area of(Double lat, Double lon, Double radiusMeters,
+                              Double minLat, Double minLon, Double maxLat, Double maxLon) {
+            if (lat != null && lon != null && radiusMeters != null) {
+                return circle(lat, lon, radiusMeters);
+            }
+            if (minLat != null && minLon != null && maxLat != null && maxLon != null) {
+                return box(minLat, minLon, maxLat, maxLon);
+            }
+            throw new IllegalArgumentException("Give either lat, lon and radius or minLat, minLon, maxLat and maxLon.");
+        }
+
+        /**
+         * @throws IllegalArgumentException if a corner is not a valid coordinate or min exceeds max.
+         */
+        public static Area box(double minLat, double minLon, double maxLat, double maxLon) {
+            if (!isValid(minLat, minLon) || !isValid(maxLat, maxLon) || minLat > maxLat || minLon > maxLon) {
+                throw new IllegalArgumentException("Invalid bounding box.");
+            }
+            return new Area(minLat, minLon, maxLat, maxLon, 0, 0, 0);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the center is not a valid coordinate or the radius is not positive.
+         */
+        public static Area circle(double lat, double lon, double radiusMeters) {
+            if (!isValid(lat, lon) || !(radiusMeters > 0)) {
+                throw new IllegalArgumentException("Invalid center or radius.");
+            }
+            double dLat = radiusMeters / METERS_PER_DEGREE;
+            double cos = Math.cos(Math.toRadians(lat));
+            double dLon = cos < 1e-6 ? 180 : Math.min(180, radiusMeters / (METERS_PER_DEGREE * cos));
+            return new Area(lat - dLat, lon - dLon, lat + dLat, lon + dLon, lat, lon, radiusMeters);
+        }
+
+        public boolean contains(double lat, double lon) {
+            if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+                return false;
+            }
+            return radiusMeters == 0 || distanceMeters(centerLat, centerLon, lat, lon) <= radiusMeters;
+        }
+
+        /**
+         * @return The finest precision whose cells are at least as large as this area.
+         */
+        public int precision() {
+            for (int precision = MAX_PRECISION; precision > MIN_PRECISION; precision--) {
+                if (cellHeight(precision) >= maxLat - minLat && cellWidth(precision) >= maxLon - minLon) {
+                    return precision;
+                }
+            }
+            return MIN_PRECISION;
+        }
+
+        /**
+         * @return The name of the property to query, for the cells returned by cells().
+         */
+        public String property() {
+            return PROPERTY_PREFIX + precision();
+        }
+
+        /**
+         * @return The geohash cells at precision() that cover this area (at most 4 unless the
+         * area is larger than a precision-3 cell).
+         * @throws IllegalArgumentException if more than MAX_CELLS cells would be needed.
+         */
+        public List<String> cells() {
+            int precision = precision();
+            double height = cellHeight(precision);
+            double width = cellWidth(precision);
+            if (Math.ceil((maxLat - minLat) / height + 1) * Math.ceil((maxLon - minLon) / width + 1) > MAX_CELLS) {
+                throw new IllegalArgumentException("Area too large.");
+            }
+            Set<String> cells = new LinkedHashSet<>();
+            for (double lat = minLat; ; lat += height) {
+                double cellLat = Math.min(lat, maxLat);
+                for (double lon = minLon; ; lon += width) {
+                    double cellLon = Math.min(lon, maxLon);
+                    cells.add(encode(cellLat, cellLon, precision));
+                    if (cellLon >= maxLon) break;
+                }
+                if (cellLat >= maxLat) break;
+            }
+            return new ArrayList<>(cells);
+        }
+    }
+
+    private GeoHash() {}
+
+    public static boolean isValid(double lat, double lon) {
+        return lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180;
+    }
+
+    /**
+     * Sets the geohash_N properties of an entity located at (lat, lon).
+     */
+    public static void index(BaseEntity.Builder<?, ?> builder, double lat, double lon) {
+        String hash = encode(lat, lon, MAX_PRECISION);
+        for (int precision = MIN_PRECISION; precision <= MAX_PRECISION; precision++) {
+            builder.set(PROPERTY_PREFIX + precision, StringValue.of(hash.substring(0, precision)));
+        }
+    }
+
+    /**
+     * Parses "lat,lon" as sent in X-AppEngine-CityLatLong.
+     * @return {lat, lon}, or null if the text is missing, malformed or out of range.
+     */
+    public static double[] parseLatLon(String latLon) {
+        if (latLon == null) {
+            return null;
+        }
+        int sep = latLon.indexOf(',');
+        if (sep < 0) {
+            return null;
+        }
+        try {
+            double lat = Double.parseDouble(latLon.substring(0, sep).trim());
+            double lon = Double.parseDouble(latLon.substring(sep + 1).trim());
+            return isValid(lat, lon) ? new double[]{lat, lon} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static String encode(double lat, double lon, int precision) {
+        double minLat = -90, maxLat = 90, minLon = -180, maxLon = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true; // Bits alternate between longitude and latitude, longitude first
+        int bit = 0;
+        int ch = 0;
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (lon >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch <<= 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (lat >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch <<= 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                hash.append(BASE32[ch]);
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Great-circle (haversine) distance.
+     */
+    public static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // Degrees of latitude covered by one cell of the given precision
+    private static double cellHeight(int precision) {
+        return 180 / Math.pow(2, (5 * precision) / 2);
+    }
+
+    private static double cellWidth(int precision) {
+        return 360 / Math.pow(2, (5 * precision + 1) / 2);
+    }
+}
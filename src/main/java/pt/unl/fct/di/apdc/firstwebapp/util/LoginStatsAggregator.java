@@ -0,0 +1,218 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind aggregation of the UserStats/counters entity. When enabled (apdc.loginstats.buffered),
+ * logins only record increments in memory and a background task folds them into Datastore every
+ * apdc.loginstats.flushMs, so the login transaction is reduced to the token write and repeated
+ * attempts on one account no longer contend on its counters entity.
+ */
+public class LoginStatsAggregator {
+
+    private static final Logger LOG = Logger.getLogger(LoginStatsAggregator.class.getName());
+
+    private static final String KIND_USER = "User";
+    private static final String KIND_STATS = "UserStats";
+    private static final String STATS_KEY_NAME = "counters";
+    private static final String FIELD_LOGINS = "user_stats_logins";
+    private static final String FIELD_FAILED = "user_stats_failed";
+    private static final String FIELD_FIRST_LOGIN = "user_first_login";
+    private static final String FIELD_LAST_LOGIN = "user_last_login";
+    private static final String FIELD_LAST_ATTEMPT = "user_last_attempt";
+    private static final String FIELD_CREATION_TIME = "user_stats_creation_time";
+
+    private static final boolean ENABLED = AppConfig.getBoolean("apdc.loginstats.buffered", false);
+    private static final long FLUSH_INTERVAL_MS = AppConfig.getLong("apdc.loginstats.flushMs", 10 * 1000);
+    private static final int USERS_PER_COMMIT = 25;
+
+    private static final Map<String, PendingStats> PENDING = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Increments accumulated for one user since the last flush.
+     */
+    private static class PendingStats {
+        long logins;
+        long failedSinceSuccess; // failed attempts after the last successful login in this batch
+        boolean resetFailed;     // a successful login happened, so stored failures are discarded
+        Timestamp firstLogin;
+        Timestamp lastLogin;
+        Timestamp lastAttempt;
+
+        synchronized void success(Timestamp now) {
+            logins++;
+            failedSinceSuccess = 0;
+            resetFailed = true;
+            if (firstLogin == null) firstLogin = now;
+            lastLogin = now;
+        }
+
+        synchronized void failure(Timestamp now) {
+            failedSinceSuccess++;
+            lastAttempt = now;
+        }
+
+        // Folds a later batch into this one (used when a flush fails and its increments are put back)
+        synchronized void merge(PendingStats later) {
+            logins += later.logins;
+            if (later.resetFailed) {
+                failedSinceSuccess = later.failedSinceSuccess;
+                resetFailed = true;
+            } else {
+                failedSinceSuccess += later.failedSinceSuccess;
+            }
+            if (firstLogin == null) firstLogin = later.firstLogin;
+            if (later.lastLogin != null) lastLogin = later.lastLogin;
+            if (later.lastAttempt != null) lastAttempt = later.lastAttempt;
+        }
+
+        synchronized Entity applyTo(Entity stored, Key key) {
+            Entity.Builder builder = stored != null ? Entity.newBuilder(stored)
+                    : Entity.newBuilder(key).set(FIELD_CREATION_TIME, Timestamp.now());
+            long storedLogins = stored != null && stored.contains(FIELD_LOGINS) ? stored.getLong(FIELD_LOGINS) : 0L;
+            long storedFailed = stored != null && stored.contains(FIELD_FAILED) ? stored.getLong(FIELD_FAILED) : 0L;
+            builder.set(FIELD_LOGINS, storedLogins + logins);
+            builder.set(FIELD_FAILED, resetFailed ? failedSinceSuccess : storedFailed + failedSinceSuccess);
+            if (firstLogin != null && (stored == null || !stored.contains(FIELD_FIRST_LOGIN))) {
+                builder.set(FIELD_FIRST_LOGIN, firstLogin);
+            }
+            if (lastLogin != null) builder.set(FIELD_LAST_LOGIN, lastLogin);
+            if (lastAttempt != null) builder.set(FIELD_LAST_ATTEMPT, lastAttempt);
+            return builder.build();
+        }
+    }
+
+    private LoginStatsAggregator() {}
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    // compute() runs atomically with the flush's remove(), so no increment lands on a batch already taken
+    public static void recordSuccess(String userID) {
+        Timestamp now = Timestamp.now();
+        PENDING.compute(userID, (k, pending) -> {
+            PendingStats stats = pending != null ? pending : new PendingStats();
+            stats.success(now);
+            return stats;
+        });
+    }
+
+    public static void recordFailure(String userID) {
+        Timestamp now = Timestamp.now();
+        PENDING.compute(userID, (k, pending) -> {
+            PendingStats stats = pending != null ? pending : new PendingStats();
+            stats.failure(now);
+            return stats;
+        });
+    }
+
+    /**
+     * Writes all pending increments, USERS_PER_COMMIT users per transaction. Increments of a
+     * failed commit are put back and retried on the next flush.
+     */
+    public static void flush(Datastore datastore) {
+        if (PENDING.isEmpty()) {
+            return;
+        }
+        List<String> userIDs = new ArrayList<>(PENDING.keySet());
+        int written = 0;
+        for (int i = 0; i < userIDs.size(); i += USERS_PER_COMMIT) {
+            List<String> chunk = userIDs.subList(i, Math.min(i + USERS_PER_COMMIT, userIDs.size()));
+            List<String> taken = new ArrayList<>(chunk.size());
+            List<PendingStats> deltas = new ArrayList<>(chunk.size());
+            for (String userID : chunk) {
+                PendingStats delta = PENDING.remove(userID);
+                if (delta != null) {
+                    taken.add(userID);
+                    deltas.add(delta);
+                }
+            }
+            if (taken.isEmpty()) {
+                continue;
+            }
+
+            Key[] keys = new Key[taken.size()];
+            for (int j = 0; j < keys.length; j++) {
+                keys[j] = datastore.newKeyFactory()
+                        .addAncestor(PathElement.of(KIND_USER, taken.get(j)))
+                        .setKind(KIND_STATS).newKey(STATS_KEY_NAME);
+            }
+
+            Transaction txn = datastore.newTransaction();
+            try {
+                List<Entity> stored = txn.fetch(keys);
+                List<Entity> updated = new ArrayList<>(keys.length);
+                for (int j = 0; j < keys.length; j++) {
+                    updated.add(deltas.get(j).applyTo(stored.get(j), keys[j]));
+                }
+                txn.put(updated.toArray(new Entity[0]));
+                txn.commit();
+                written += keys.length;
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Login stats flush failed for " + keys.length + " users, will retry.", e);
+                for (int j = 0; j < taken.size(); j++) {
+                    PendingStats delta = deltas.get(j);
+                    PENDING.merge(taken.get(j), delta, (newer, older) -> {
+                        older.merge(newer);
+                        return older;
+                    });
+                }
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+        LOG.fine("Flushed login stats for " + written + " users.");
+    }
+
+    public static synchronized void start(Datastore datastore) {
+        if (!ENABLED || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "login-stats-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                flush(datastore);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Login stats flush failed.", e);
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOG.info("Buffered login stats enabled (flush every " + FLUSH_INTERVAL_MS + " ms).");
+    }
+
+    /**
+     * Stops the background task and writes whatever is still pending.
+     */
+    public static synchronized void stop(Datastore datastore) {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+        flush(datastore);
+    }
+}
@@ -0,0 +1,241 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory sliding-window limiter for failed logins, keyed by userID and by remote IP.
+ * LoginResource checks the IP and the identifier as given before any Datastore read; only then is
+ * an email resolved to its owner's userID and that account's window checked too, so a user's
+ * username and email share a budget. A failure by email is recorded under both the owner and the
+ * email, so a throttled email is turned away before its lookup. Keys are spread over STRIPES
+ * independently locked maps so unrelated logins do not contend.
+ *
+ * Each stripe holds at most MAX_KEYS_PER_STRIPE keys. When a new key finds its stripe full, keys
+ * idle for longer than the longest window are dropped, then the tenth with the oldest last failure
+ * among those not currently throttled. If only throttled keys remain, the new key is not tracked:
+ * a flood of fresh identifiers is then limited by the IP window alone, and cannot grow memory or
+ * release anyone's lockout.
+ */
+public class LoginThrottle {
+
+    private static final boolean ENABLED = AppConfig.getBoolean("apdc.login.throttle.enabled", true);
+    private static final int USER_MAX_FAILURES = AppConfig.getInt("apdc.login.throttle.userMax", 5);
+    private static final long USER_WINDOW_MS = AppConfig.getLong("apdc.login.throttle.userWindowMs", 15 * 60 * 1000);
+    private static final int IP_MAX_FAILURES = AppConfig.getInt("apdc.login.throttle.ipMax", 50);
+    private static final long IP_WINDOW_MS = AppConfig.getLong("apdc.login.throttle.ipWindowMs", 15 * 60 * 1000);
+
+    private static final int STRIPES = 64;
+    private static final int MAX_KEYS_PER_STRIPE = 2048;
+
+    private static final String USER_PREFIX = "user:";
+    private static final String IP_PREFIX = "ip:";
+
+    private static final Stripe[] TABLE = new Stripe[STRIPES];
+    private static final AtomicLong REJECTED = new AtomicLong();
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            TABLE[i] = new Stripe();
+        }
+    }
+
+    // Timestamps of recent failures per key, oldest first; guarded by the stripe's monitor
+    private static class Stripe {
+        final Map<String, ArrayDeque<Long>> windows = new HashMap<>();
+    }
+
+    private LoginThrottle() {}
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Returns 0 when a login attempt may proceed, otherwise the milliseconds until it may.
+     * @param userID The identifier as given, or a userID it resolved to.
+     * @param remoteAddr The client IP, or null to check the account window only.
+     */
+    public static long retryAfterMs(String userID, String remoteAddr) {
+        if (!ENABLED) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long wait = retryAfter(userKey(userID), USER_MAX_FAILURES, USER_WINDOW_MS, now);
+        if (remoteAddr != null) {
+            wait = Math.max(wait, retryAfter(IP_PREFIX + remoteAddr, IP_MAX_FAILURES, IP_WINDOW_MS, now));
+        }
+        if (wait > 0) {
+            REJECTED.incrementAndGet();
+        }
+        return wait;
+    }
+
+    public static void recordFailure(String userID, String remoteAddr) {
+        recordFailure(userID, null, remoteAddr);
+    }
+
+    /**
+     * Records a failure against an account and the other identifier (an email) it was reached by,
+     * which may be null.
+     */
+    public static void recordFailure(String userID, String alias, String remoteAddr) {
+        if (!ENABLED) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        record(userKey(userID), USER_MAX_FAILURES, USER_WINDOW_MS, now);
+        if (alias != null) {
+            record(userKey(alias), USER_MAX_FAILURES, USER_WINDOW_MS, now);
+        }
+        record(IP_PREFIX + remoteAddr, IP_MAX_FAILURES, IP_WINDOW_MS, now);
+    }
+
+    /**
+     * Clears the failures of an account, and of the identifier it was reached by (may be null),
+     * once its owner logs in. The IP window is kept.
+     */
+    public static void recordSuccess(String userID, String alias) {
+        if (!ENABLED) {
+            return;
+        }
+        clear(userKey(userID));
+        if (alias != null) {
+            clear(userKey(alias));
+        }
+    }
+
+    /**
+     * Keys currently over their limit, with the seconds left until they are allowed again.
+     */
+    public static List<Map<String, Object>> throttledKeys() {
+        List<Map<String, Object>> throttled = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Stripe stripe : TABLE) {
+            synchronized (stripe) {
+                for (Map.Entry<String, ArrayDeque<Long>> entry : stripe.windows.entrySet()) {
+                    String key = entry.getKey();
+                    boolean isUser = key.startsWith(USER_PREFIX);
+                    long wait = waitFor(entry.getValue(), isUser ? USER_MAX_FAILURES : IP_MAX_FAILURES,
+                            isUser ? USER_WINDOW_MS : IP_WINDOW_MS, now);
+                    if (wait > 0) {
+                        Map<String, Object> item = new HashMap<>();
+                        item.put("key", key);
+                        item.put("failures", entry.getValue().size());
+                        item.put("retryAfterSeconds", (wait + 999) / 1000);
+                        throttled.add(item);
+                    }
+                }
+            }
+        }
+        return throttled;
+    }
+
+    public static long rejectedCount() {
+        return REJECTED.get();
+    }
+
+    private static String userKey(String userID) {
+        return USER_PREFIX + (userID == null ? "" : userID.trim().toLowerCase(Locale.ROOT));
+    }
+
+    private static Stripe stripeOf(String key) {
+        return TABLE[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static void clear(String key) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            stripe.windows.remove(key);
+        }
+    }
+
+    private static long retryAfter(String key, int max, long windowMs, long now) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            ArrayDeque<Long> attempts = stripe.windows.get(key);
+            if (attempts == null) {
+                return 0;
+            }
+            expire(attempts, windowMs, now);
+            if (attempts.isEmpty()) {
+                stripe.windows.remove(key);
+                return 0;
+            }
+            return waitFor(attempts, max, windowMs, now);
+        }
+    }
+
+    private static void record(String key, int max, long windowMs, long now) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            ArrayDeque<Long> attempts = stripe.windows.get(key);
+            if (attempts == null) {
+                if (stripe.windows.size() >= MAX_KEYS_PER_STRIPE) {
+                    evict(stripe, now);
+                    if (stripe.windows.size() >= MAX_KEYS_PER_STRIPE) {
+                        return; // Only throttled keys left; this one goes untracked
+                    }
+                }
+                attempts = new ArrayDeque<>(Math.min(max, 16));
+                stripe.windows.put(key, attempts);
+            }
+            expire(attempts, windowMs, now);
+            attempts.addLast(now);
+            // Failures beyond the limit only delay the release; keep a bounded history per key
+            while (attempts.size() > max) {
+                attempts.pollFirst();
+            }
+        }
+    }
+
+    // Time until enough failures leave the window to fall below max; 0 when already below
+    private static long waitFor(ArrayDeque<Long> attempts, int max, long windowMs, long now) {
+        if (attempts.size() < max) {
+            return 0;
+        }
+        Iterator<Long> it = attempts.iterator();
+        long releasing = 0;
+        for (int i = 0; i <= attempts.size() - max && it.hasNext(); i++) {
+            releasing = it.next();
+        }
+        return Math.max(0, releasing + windowMs - now);
+    }
+
+    private static void expire(ArrayDeque<Long> attempts, long windowMs, long now) {
+        while (!attempts.isEmpty() && attempts.peekFirst() <= now - windowMs) {
+            attempts.pollFirst();
+        }
+    }
+
+    // Drops idle keys, then the tenth with the oldest last failure among those not throttled
+    private static void evict(Stripe stripe, long now) {
+        long horizon = now - Math.max(USER_WINDOW_MS, IP_WINDOW_MS);
+        stripe.windows.values().removeIf(attempts -> attempts.isEmpty() || attempts.peekLast() <= horizon);
+        if (stripe.windows.size() < MAX_KEYS_PER_STRIPE) {
+            return;
+        }
+        List<Map.Entry<String, ArrayDeque<Long>>> candidates = new ArrayList<>();
+        for (Map.Entry<String, ArrayDeque<Long>> entry : stripe.windows.entrySet()) {
+            boolean isUser = entry.getKey().startsWith(USER_PREFIX);
+            if (waitFor(entry.getValue(), isUser ? USER_MAX_FAILURES : IP_MAX_FAILURES,
+                    isUser ? USER_WINDOW_MS : IP_WINDOW_MS, now) == 0) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(e -> e.getValue().peekLast()));
+        int toDrop = Math.min(candidates.size(), Math.max(1, MAX_KEYS_PER_STRIPE / 10));
+        List<String> dropped = new ArrayList<>(toDrop);
+        for (int i = 0; i < toDrop; i++) {
+            dropped.add(candidates.get(i).getKey());
+        }
+        stripe.windows.keySet().removeAll(dropped);
+    }
+}
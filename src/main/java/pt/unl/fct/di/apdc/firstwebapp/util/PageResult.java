@@ -0,0 +1,26 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import java.util.List;
+
+/**
+ * JSON body of paginated listings. Pass nextCursor back to get the following page;
+ * it is null on the last page.
+ */
+public class PageResult {
+
+    private List<?> results;
+    private String nextCursor;
+
+    public PageResult(List<?> results, String nextCursor) {
+        this.results = results;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<?> getResults() {
+        return results;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
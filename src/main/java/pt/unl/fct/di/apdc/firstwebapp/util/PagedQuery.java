@@ -0,0 +1,91 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.DatastoreReader;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cursor-based paging over one or more Datastore queries ("segments") read one after the other.
+ * Segments express an IN over a property as several equality queries, since each equality
+ * query is served directly by an index. Memory and latency stay proportional to the page size.
+ * The opaque cursor handed to clients is "<segment>:<datastore cursor>".
+ */
+public class PagedQuery {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    public static class Page<V> {
+        public final List<V> items;
+        public final String nextCursor; // null when there are no more results
+
+        Page(List<V> items, String nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    private PagedQuery() {}
+
+    public static int pageSize(Integer requested) {
+        if (requested == null || requested <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(requested, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Reads one page across the given segments, resuming from cursor (null for the first page).
+     * @throws IllegalArgumentException if the cursor is malformed.
+     */
+    public static <V> Page<V> fetch(DatastoreReader reader, List<? extends StructuredQuery.Builder<V>> segments,
+                                    int pageSize, String cursor) {
+        int segment = 0;
+        Cursor start = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            int sep = cursor.indexOf(':');
+            try {
+                segment = Integer.parseInt(cursor.substring(0, sep));
+                String datastoreCursor = cursor.substring(sep + 1);
+                start = datastoreCursor.isEmpty() ? null : Cursor.fromUrlSafe(datastoreCursor);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Malformed cursor.", e);
+            }
+            if (segment < 0 || segment >= segments.size()) {
+                throw new IllegalArgumentException("Malformed cursor.");
+            }
+        }
+
+        List<V> items = new ArrayList<>(pageSize);
+        while (segment < segments.size()) {
+            int remaining = pageSize - items.size();
+            StructuredQuery.Builder<V> builder = segments.get(segment).setLimit(remaining + 1);
+            if (start != null) {
+                builder.setStartCursor(start);
+            }
+            QueryResults<V> results = reader.run(builder.build());
+
+            int taken = 0;
+            while (taken < remaining && results.hasNext()) {
+                items.add(results.next());
+                taken++;
+            }
+            if (taken == remaining) {
+                // Capture the cursor before hasNext(), which would move it past the look-ahead result
+                Cursor after = results.getCursorAfter();
+                if (results.hasNext()) {
+                    return new Page<>(items, segment + ":" + after.toUrlSafe());
+                }
+                segment++;
+                return new Page<>(items, segment < segments.size() ? segment + ":" : null);
+            }
+            segment++;
+            start = null;
+        }
+        return new Page<>(items, null);
+    }
+}
@@ -0,0 +1,231 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Salted password hashing. New hashes use the current scheme and are stored self-describing
+ * ("$pbkdf2-sha512$&lt;iterations&gt;$&lt;salt&gt;$&lt;hash&gt;"), so the cost can be raised later and
+ * old hashes are still verified; needsRehash() tells LoginResource when to upgrade one. Unsalted
+ * SHA-512 hex digests from before this class are accepted as the legacy scheme.
+ *
+ * All hashing runs on a fixed-size executor with a bounded queue. A burst of logins waits there
+ * instead of occupying every request thread with CPU work; when the queue is full the call fails
+ * fast with BusyException.
+ */
+public class PasswordHasher {
+
+    private static final Logger LOG = Logger.getLogger(PasswordHasher.class.getName());
+
+    // Retry-After sent with the 503 answering a BusyException
+    public static final int RETRY_AFTER_SECONDS = 1;
+
+    /**
+     * A stored hash format that can be checked. Legacy formats only implement this.
+     */
+    public interface Scheme {
+        boolean matches(String stored);
+
+        boolean verify(String password, String stored);
+
+        boolean needsRehash(String stored);
+    }
+
+    /**
+     * A scheme new hashes can be produced with.
+     */
+    public interface HashingScheme extends Scheme {
+        String hash(String password);
+    }
+
+    /**
+     * Thrown when the hashing executor cannot take more work.
+     */
+    public static class BusyException extends RuntimeException {
+        public BusyException(String message) {
+            super(message);
+        }
+    }
+
+    static class Pbkdf2Scheme implements HashingScheme {
+        private static final String PREFIX = "$pbkdf2-sha512$";
+        private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+        private static final int SALT_BYTES = 16;
+        private static final int HASH_BITS = 512;
+
+        private final int iterations;
+        private final SecureRandom random = new SecureRandom();
+
+        Pbkdf2Scheme(int iterations) {
+            this.iterations = iterations;
+        }
+
+        @Override
+        public boolean matches(String stored) {
+            return stored.startsWith(PREFIX);
+        }
+
+        @Override
+        public String hash(String password) {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            byte[] hash = derive(password, salt, iterations);
+            Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+            return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(hash);
+        }
+
+        @Override
+        public boolean verify(String password, String stored) {
+            String[] parts = stored.substring(PREFIX.length()).split("\\$");
+            if (parts.length != 3) {
+                return false;
+            }
+            try {
+                int storedIterations = Integer.parseInt(parts[0]);
+                byte[] salt = Base64.getDecoder().decode(parts[1]);
+                byte[] expected = Base64.getDecoder().decode(parts[2]);
+                return MessageDigest.isEqual(expected, derive(password, salt, storedIterations));
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean needsRehash(String stored) {
+            String rest = stored.substring(PREFIX.length());
+            int end = rest.indexOf('$');
+            try {
+                return end < 0 || Integer.parseInt(rest.substring(0, end)) < iterations;
+            } catch (NumberFormatException e) {
+                return true;
+            }
+        }
+
+        private static byte[] derive(String password, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("PBKDF2 not available", e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+
+    // Unsalted SHA-512 hex digest, as stored by earlier versions; verify only
+    static class LegacySha512Scheme implements Scheme {
+        @Override
+        public boolean matches(String stored) {
+            return stored.length() == 128 && !stored.startsWith("$");
+        }
+
+        @Override
+        public boolean verify(String password, String stored) {
+            byte[] computed = DigestUtils.sha512Hex(password).getBytes(StandardCharsets.US_ASCII);
+            return MessageDigest.isEqual(computed, stored.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public boolean needsRehash(String stored) {
+            return true;
+        }
+    }
+
+    private static final int PBKDF2_ITERATIONS = AppConfig.getInt("apdc.password.pbkdf2.iterations", 210000);
+    private static final int HASH_THREADS = AppConfig.getInt("apdc.password.hashThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors()));
+    private static final int HASH_QUEUE = AppConfig.getInt("apdc.password.hashQueue", 64);
+    private static final long HASH_TIMEOUT_MS = AppConfig.getLong("apdc.password.hashTimeoutMs", 5000);
+
+    private static final HashingScheme CURRENT = new Pbkdf2Scheme(PBKDF2_ITERATIONS);
+    private static final Scheme[] SCHEMES = {CURRENT, new LegacySha512Scheme()};
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(HASH_THREADS, HASH_THREADS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(HASH_QUEUE), r -> {
+                Thread t = new Thread(r, "password-hasher");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private PasswordHasher() {}
+
+    /**
+     * Hashes a new password with the current scheme.
+     */
+    public static String hash(String password) {
+        return run(() -> CURRENT.hash(password));
+    }
+
+    /**
+     * Checks a password against a stored hash of any known scheme.
+     */
+    public static boolean verify(String password, String stored) {
+        if (password == null || stored == null) {
+            return false;
+        }
+        Scheme scheme = schemeOf(stored);
+        if (scheme == null) {
+            LOG.warning("Stored password hash has an unknown format.");
+            return false;
+        }
+        return run(() -> scheme.verify(password, stored));
+    }
+
+    /**
+     * True when the stored hash should be replaced by hash(password) after a successful verify.
+     */
+    public static boolean needsRehash(String stored) {
+        Scheme scheme = schemeOf(stored);
+        return scheme == null || scheme != CURRENT || CURRENT.needsRehash(stored);
+    }
+
+    public static void shutdown() {
+        EXECUTOR.shutdownNow();
+    }
+
+    private static Scheme schemeOf(String stored) {
+        for (Scheme scheme : SCHEMES) {
+            if (scheme.matches(stored)) {
+                return scheme;
+            }
+        }
+        return null;
+    }
+
+    private static <T> T run(Callable<T> task) {
+        Future<T> future;
+        try {
+            future = EXECUTOR.submit(task);
+        } catch (RejectedExecutionException e) {
+            LOG.warning("Password hashing queue is full.");
+            throw new BusyException("Password hashing queue is full.");
+        }
+        try {
+            return future.get(HASH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new BusyException("Password hashing timed out.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new BusyException("Interrupted while hashing password.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -4,11 +4,6 @@ import java.util.Objects;
 
 public class RemoveData {
 
-    public static final String ROLE_ADMIN = "ADMIN";
-    public static final String ROLE_BACKOFFICE = "BACKOFFICE";
-    public static final String ROLE_ENDUSER = "ENDUSER";
-    public static final String ROLE_PARTNER = "PARTNER";
-
     public String userID1; // User initiating the removal
     public String userID2;
     public String email;// User to be removed
@@ -26,23 +21,4 @@ public class RemoveData {
         return userID1 != null && !userID1.trim().isEmpty() &&
                 ( (userID2 != null && !userID2.trim().isEmpty()) || (email != null && !email.trim().isEmpty()) );
     }
-
-    public boolean authorizeChange(String userRole, String targetRole) {
-        if (userRole == null || targetRole == null) {
-            return false;
-        }
-
-        String userRoleUpper = userRole.toUpperCase();
-        String targetRoleUpper = targetRole.toUpperCase();
-
-        if (userRoleUpper.equals(ROLE_ADMIN)) {
-            return true;
-        }
-
-        if (userRoleUpper.equals(ROLE_BACKOFFICE)) {
-            return targetRoleUpper.equals(ROLE_ENDUSER) || targetRoleUpper.equals(ROLE_PARTNER);
-        }
-
-        return false;
-    }
 }
\ No newline at end of file
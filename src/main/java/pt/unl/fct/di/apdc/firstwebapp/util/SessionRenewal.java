@@ -0,0 +1,155 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Transaction;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extends a valid session instead of making the client log in again. A session is pushed to
+ * now + AuthToken.EXPIRATION_TIME, but never past creation + apdc.auth.maxSessionMs, and only once
+ * at least apdc.auth.renewAfterMs have passed since it was last extended: more frequent calls
+ * return the current expiry without touching Datastore. A renewal of a stored token rewrites only
+ * its AuthToken entity; a signed token is re-signed with the same jti and creation time, with no
+ * write at all.
+ *
+ * With apdc.auth.slidingExpiry=true the AuthenticationFilter also renews stored tokens on every
+ * authenticated request, under the same rules.
+ */
+public class SessionRenewal {
+
+    private static final Logger LOG = Logger.getLogger(SessionRenewal.class.getName());
+
+    private static final String FIELD_EXPIRATION = "expiration_date";
+    private static final String FIELD_CREATION = "creation_date";
+
+    private static final long RENEW_AFTER_MS = AppConfig.getLong("apdc.auth.renewAfterMs", 15 * 60 * 1000);
+    private static final long MAX_SESSION_MS = Math.max(AuthToken.EXPIRATION_TIME,
+            AppConfig.getLong("apdc.auth.maxSessionMs", 24 * 60 * 60 * 1000));
+    private static final boolean SLIDING = AppConfig.getBoolean("apdc.auth.slidingExpiry", false);
+
+    private SessionRenewal() {}
+
+    public static boolean isSlidingEnabled() {
+        return SLIDING;
+    }
+
+    /**
+     * @return The latest instant a session created at {@code creationDate} can be extended to.
+     * Revocations must be kept at least until then.
+     */
+    public static long maxExpiration(long creationDate) {
+        return creationDate + MAX_SESSION_MS;
+    }
+
+    /**
+     * @return How long a user-wide revocation must be kept so that every session it covers has expired.
+     */
+    public static long maxSessionMs() {
+        return MAX_SESSION_MS;
+    }
+
+    /**
+     * Renews the session of an authenticated caller.
+     * @return The token to hand back to the client (the same token ID for stored tokens, a new
+     * signed form for signed ones), or null if the stored token no longer exists.
+     */
+    public static AuthToken renew(Datastore datastore, UserPrincipal principal) {
+        String tokenID = principal.getTokenID();
+        if (TokenSigner.isSignedToken(tokenID)) {
+            return renewSigned(tokenID);
+        }
+        return renewStored(datastore, principal);
+    }
+
+    /**
+     * Sliding expiry for the AuthenticationFilter: renews a stored token when it is due and returns
+     * the principal to use for the rest of the request. Signed tokens and failed renewals leave the
+     * principal unchanged; a failure here never fails the request.
+     */
+    public static UserPrincipal slide(Datastore datastore, UserPrincipal principal) {
+        if (!SLIDING || TokenSigner.isSignedToken(principal.getTokenID())
+                || !isDue(principal.getExpirationDate(), System.currentTimeMillis())) {
+            return principal;
+        }
+        try {
+            AuthToken renewed = renewStored(datastore, principal);
+            if (renewed == null || renewed.expirationData == principal.getExpirationDate()) {
+                return principal;
+            }
+            return principal.withExpirationDate(renewed.expirationData);
+        } catch (DatastoreException e) {
+            LOG.log(Level.WARNING, "Sliding renewal failed for token " + principal.getTokenID() + ".", e);
+            return principal;
+        }
+    }
+
+    // True once RENEW_AFTER_MS have passed since the expiry was last set to now + EXPIRATION_TIME
+    private static boolean isDue(long expirationDate, long now) {
+        return expirationDate - now <= AuthToken.EXPIRATION_TIME - RENEW_AFTER_MS;
+    }
+
+    private static long renewedExpiration(long creationDate, long now) {
+        return Math.min(now + AuthToken.EXPIRATION_TIME, maxExpiration(creationDate));
+    }
+
+    private static AuthToken renewSigned(String signedToken) {
+        TokenSigner.Claims claims = TokenSigner.verify(signedToken);
+        if (claims == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long expiration = isDue(claims.exp, now) ? Math.max(claims.exp, renewedExpiration(claims.iat, now)) : claims.exp;
+        if (expiration == claims.exp) {
+            return new AuthToken(claims.username, signedToken, claims.role, claims.iat, claims.exp, null);
+        }
+        AuthToken token = new AuthToken(claims.username, claims.jti, claims.role, claims.iat, expiration, null);
+        token.tokenID = TokenSigner.sign(token, claims.state);
+        LOG.fine("Signed token " + claims.jti + " renewed until " + expiration);
+        return token;
+    }
+
+    private static AuthToken renewStored(Datastore datastore, UserPrincipal principal) {
+        String tokenID = principal.getTokenID();
+        long now = System.currentTimeMillis();
+        if (!isDue(principal.getExpirationDate(), now)) {
+            // Not due yet: the validated principal already carries the whole token
+            return new AuthToken(principal.getUsername(), tokenID, principal.getRole(),
+                    principal.getCreationDate(), principal.getExpirationDate(), principal.getVerifier());
+        }
+
+        Key tokenKey = datastore.newKeyFactory().setKind(AuthUtil.AUTH_TOKEN_KIND).newKey(tokenID);
+        Transaction txn = datastore.newTransaction();
+        try {
+            // Read in the transaction so a concurrent logout is not undone by the rewrite
+            Entity tokenEntity = txn.get(tokenKey);
+            if (tokenEntity == null) {
+                txn.rollback();
+                AuthUtil.invalidateToken(tokenID);
+                return null;
+            }
+            long creation = tokenEntity.getLong(FIELD_CREATION);
+            long current = tokenEntity.getLong(FIELD_EXPIRATION);
+            long expiration = Math.max(current, renewedExpiration(creation, now));
+            if (expiration == current) {
+                // Renewed by a concurrent request, or the session reached its maximum length
+                txn.rollback();
+            } else {
+                txn.put(Entity.newBuilder(tokenEntity).set(FIELD_EXPIRATION, expiration).build());
+                txn.commit();
+                TokenCache.put(tokenID, principal.withExpirationDate(expiration));
+                LOG.fine("Stored token " + tokenID + " renewed until " + expiration);
+            }
+            return new AuthToken(tokenEntity.getString("user_username"), tokenID, tokenEntity.getString("user_role"),
+                    creation, expiration, tokenEntity.contains("verifier") ? tokenEntity.getString("verifier") : null);
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+}
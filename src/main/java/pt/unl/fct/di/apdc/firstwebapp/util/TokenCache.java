@@ -0,0 +1,102 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-memory cache of validated tokens, keyed by tokenID.
+ * Each entry holds the resolved UserPrincipal and is dropped at the token's expiration_date,
+ * or after MAX_STALENESS_MS, whichever comes first.
+ *
+ * Revocations performed on this instance go through invalidate/invalidateUser and take effect
+ * immediately. One performed on another instance (logout, removal, suspension, role or password
+ * change) is not seen here until the entry is dropped, so a revoked ENDUSER or PARTNER token keeps
+ * working on this instance for up to apdc.auth.cache.maxStalenessMs (5 s by default). Tokens of
+ * BACKOFFICE and ADMIN users are never cached: they are validated against Datastore, token
+ * generation included, on every request, so a demoted or removed privileged user loses those
+ * rights at once on every instance.
+ */
+public class TokenCache {
+
+    private static final Logger LOG = Logger.getLogger(TokenCache.class.getName());
+
+    private static final int MAX_ENTRIES = AppConfig.getInt("apdc.auth.cache.maxEntries", 10000);
+    private static final long MAX_STALENESS_MS = AppConfig.getLong("apdc.auth.cache.maxStalenessMs", 5 * 1000);
+
+    private static final Map<String, CachedToken> CACHE = new ConcurrentHashMap<>();
+
+    private static class CachedToken {
+        final UserPrincipal principal;
+        final long validUntil;
+
+        CachedToken(UserPrincipal principal, long validUntil) {
+            this.principal = principal;
+            this.validUntil = validUntil;
+        }
+    }
+
+    private TokenCache() {}
+
+    /**
+     * @return The cached principal for this token, or null if absent or no longer valid.
+     */
+    public static UserPrincipal get(String tokenID) {
+        CachedToken cached = CACHE.get(tokenID);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.validUntil < System.currentTimeMillis()) {
+            CACHE.remove(tokenID, cached);
+            return null;
+        }
+        return cached.principal;
+    }
+
+    public static void put(String tokenID, UserPrincipal principal) {
+        if (MAX_ENTRIES <= 0 || isPrivileged(principal.getRole())) {
+            return; // Cache disabled, or a role whose revocation must be seen at once
+        }
+        long validUntil = Math.min(principal.getExpirationDate(), System.currentTimeMillis() + MAX_STALENESS_MS);
+        if (CACHE.size() >= MAX_ENTRIES) {
+            evict();
+        }
+        CACHE.put(tokenID, new CachedToken(principal, validUntil));
+    }
+
+    public static void invalidate(String tokenID) {
+        if (tokenID != null) {
+            CACHE.remove(tokenID);
+        }
+    }
+
+    /**
+     * Drops every cached token of the given user (role, state or password changed, or account removed).
+     */
+    public static void invalidateUser(String username) {
+        if (username != null) {
+            CACHE.values().removeIf(cached -> username.equals(cached.principal.getUsername()));
+        }
+    }
+
+    private static boolean isPrivileged(String role) {
+        AuthorizationPolicy.Role parsed = AuthorizationPolicy.Role.of(role);
+        return parsed != AuthorizationPolicy.Role.ENDUSER && parsed != AuthorizationPolicy.Role.PARTNER;
+    }
+
+    // Purges expired entries first; if the cache is still full, drops entries until there is room.
+    private static void evict() {
+        long now = System.currentTimeMillis();
+        CACHE.values().removeIf(cached -> cached.validUntil < now);
+
+        Iterator<String> it = CACHE.keySet().iterator();
+        int toRemove = CACHE.size() - MAX_ENTRIES + 1;
+        while (toRemove > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+            toRemove--;
+        }
+        LOG.fine("Token cache evicted entries, current size: " + CACHE.size());
+    }
+}
@@ -0,0 +1,137 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Revocations of stateless (signed) tokens. Each revocation is persisted as a RevokedToken
+ * entity and kept in memory; a background task reloads the unexpired ones periodically so
+ * revocations made on other instances are picked up.
+ * Two kinds of entries exist: a single token (key = token jti), and a whole user
+ * (key = "user:" + username), which revokes every token of that user issued before it.
+ */
+public class TokenRevocationList {
+
+    private static final Logger LOG = Logger.getLogger(TokenRevocationList.class.getName());
+
+    public static final String KIND_REVOKED_TOKEN = "RevokedToken";
+    private static final String FIELD_EXPIRATION = "expiration_date";
+    private static final String FIELD_USERNAME = "user_username";
+    private static final String FIELD_REVOKED_AT = "revoked_at";
+    private static final String USER_KEY_PREFIX = "user:";
+
+    private static final long REFRESH_INTERVAL_MS = AppConfig.getLong("apdc.auth.revocation.refreshMs", 30 * 1000);
+
+    // jti -> expiration of the revoked token
+    private static volatile Map<String, Long> revokedTokens = new ConcurrentHashMap<>();
+    // username -> tokens issued before this instant are revoked
+    private static volatile Map<String, Long> revokedUsers = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService scheduler;
+
+    private TokenRevocationList() {}
+
+    public static boolean isRevoked(TokenSigner.Claims claims) {
+        if (revokedTokens.containsKey(claims.jti)) {
+            return true;
+        }
+        Long revokedBefore = revokedUsers.get(claims.username);
+        return revokedBefore != null && claims.iat <= revokedBefore;
+    }
+
+    /**
+     * Revokes one token (logout). Kept until the token would have expired anyway.
+     */
+    public static void revokeToken(Datastore datastore, String jti, String username, long expirationDate) {
+        revokedTokens.put(jti, expirationDate);
+        Key key = datastore.newKeyFactory().setKind(KIND_REVOKED_TOKEN).newKey(jti);
+        datastore.put(Entity.newBuilder(key)
+                .set(FIELD_USERNAME, username)
+                .set(FIELD_EXPIRATION, expirationDate)
+                .set(FIELD_REVOKED_AT, System.currentTimeMillis())
+                .build());
+    }
+
+    /**
+     * Revokes every token of a user issued up to now (account removal). Kept for the maximum
+     * session length, after which all of those tokens have expired even if they were renewed.
+     */
+    public static void revokeUser(Datastore datastore, String username) {
+        long now = System.currentTimeMillis();
+        revokedUsers.put(username, now);
+        Key key = datastore.newKeyFactory().setKind(KIND_REVOKED_TOKEN).newKey(USER_KEY_PREFIX + username);
+        datastore.put(Entity.newBuilder(key)
+                .set(FIELD_USERNAME, username)
+                .set(FIELD_EXPIRATION, now + SessionRenewal.maxSessionMs())
+                .set(FIELD_REVOKED_AT, now)
+                .build());
+    }
+
+    /**
+     * Reloads all unexpired revocations from Datastore and swaps them in.
+     */
+    public static void refresh(Datastore datastore) {
+        long now = System.currentTimeMillis();
+        Query<Entity> query = Query.newEntityQueryBuilder()
+                .setKind(KIND_REVOKED_TOKEN)
+                .setFilter(PropertyFilter.gt(FIELD_EXPIRATION, now))
+                .build();
+
+        Map<String, Long> tokens = new ConcurrentHashMap<>();
+        Map<String, Long> users = new ConcurrentHashMap<>();
+        QueryResults<Entity> results = datastore.run(query);
+        while (results.hasNext()) {
+            Entity revoked = results.next();
+            String name = revoked.getKey().getName();
+            if (name.startsWith(USER_KEY_PREFIX)) {
+                users.merge(revoked.getString(FIELD_USERNAME), revoked.getLong(FIELD_REVOKED_AT), Math::max);
+            } else {
+                tokens.put(name, revoked.getLong(FIELD_EXPIRATION));
+            }
+        }
+        // Keep local revocations that may have been written after the query ran
+        revokedTokens.forEach((jti, exp) -> {
+            if (exp > now) tokens.putIfAbsent(jti, exp);
+        });
+        revokedUsers.forEach((username, revokedAt) -> {
+            if (revokedAt + SessionRenewal.maxSessionMs() > now) users.merge(username, revokedAt, Math::max);
+        });
+        revokedTokens = tokens;
+        revokedUsers = users;
+        LOG.fine("Revocation list refreshed: " + tokens.size() + " tokens, " + users.size() + " users.");
+    }
+
+    public static synchronized void start(Datastore datastore) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "token-revocation-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh(datastore);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Revocation list refresh failed, keeping the previous one.", e);
+            }
+        }, 0, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOG.info("Token revocation list refresh started (every " + REFRESH_INTERVAL_MS + " ms).");
+    }
+
+    public static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.logging.Logger;
+
+/**
+ * Stateless token mode: the token itself carries username, role, state and expiry plus an
+ * HMAC-SHA256 over them, so validating it is a pure CPU check with no Datastore read.
+ * Format: "S1.<base64url claims JSON>.<base64url HMAC>".
+ * The mode is enabled by setting apdc.auth.stateless=true together with a secret in
+ * apdc.auth.tokenSecret; revocations are tracked by TokenRevocationList.
+ */
+public class TokenSigner {
+
+    private static final Logger LOG = Logger.getLogger(TokenSigner.class.getName());
+
+    private static final String PREFIX = "S1.";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final boolean ENABLED;
+    private static final SecretKeySpec KEY;
+
+    private static final Gson g = new Gson();
+    private static final Base64.Encoder B64_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64_DECODER = Base64.getUrlDecoder();
+
+    static {
+        String secret = AppConfig.getString("apdc.auth.tokenSecret", null);
+        boolean requested = AppConfig.getBoolean("apdc.auth.stateless", false);
+        if (requested && secret == null) {
+            LOG.severe("Stateless tokens requested but apdc.auth.tokenSecret is not set. Falling back to stored tokens.");
+        }
+        ENABLED = requested && secret != null;
+        KEY = secret == null ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+    }
+
+    /**
+     * Signed content of a stateless token. The jti is the ID of the AuthToken entity written at
+     * login, and is what gets revoked on logout.
+     */
+    public static class Claims {
+        public String username;
+        public String role;
+        public String state;
+        public String jti;
+        public long iat;
+        public long exp;
+
+        public UserPrincipal toPrincipal(String signedToken) {
+            return new UserPrincipal(username, role, state, signedToken, iat, exp, null);
+        }
+    }
+
+    private TokenSigner() {}
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static boolean isSignedToken(String tokenID) {
+        return tokenID != null && tokenID.startsWith(PREFIX);
+    }
+
+    /**
+     * @return The signed form of the given token, to be handed to the client as its tokenID.
+     */
+    public static String sign(AuthToken token, String state) {
+        Claims claims = new Claims();
+        claims.username = token.username;
+        claims.role = token.role;
+        claims.state = state;
+        claims.jti = token.tokenID;
+        claims.iat = token.creationData;
+        claims.exp = token.expirationData;
+
+        String payload = B64_ENCODER.encodeToString(g.toJson(claims).getBytes(StandardCharsets.UTF_8));
+        return PREFIX + payload + "." + B64_ENCODER.encodeToString(mac(payload));
+    }
+
+    /**
+     * Checks the signature and expiry of a signed token. Revocation is checked by the caller.
+     * @return The token claims, or null if the token is malformed, forged or expired.
+     */
+    public static Claims verify(String signedToken) {
+        if (KEY == null || !isSignedToken(signedToken)) {
+            return null;
+        }
+        int sep = signedToken.lastIndexOf('.');
+        if (sep <= PREFIX.length()) {
+            return null;
+        }
+        String payload = signedToken.substring(PREFIX.length(), sep);
+        try {
+            byte[] signature = B64_DECODER.decode(signedToken.substring(sep + 1));
+            if (!MessageDigest.isEqual(signature, mac(payload))) {
+                LOG.warning("Signed token rejected: bad signature.");
+                return null;
+            }
+            Claims claims = g.fromJson(new String(B64_DECODER.decode(payload), StandardCharsets.UTF_8), Claims.class);
+            if (claims == null || claims.username == null || claims.jti == null) {
+                return null;
+            }
+            if (claims.exp < System.currentTimeMillis()) {
+                LOG.fine("Signed token rejected: expired.");
+                return null;
+            }
+            return claims;
+        } catch (IllegalArgumentException | JsonSyntaxException e) {
+            LOG.warning("Signed token rejected: malformed.");
+            return null;
+        }
+    }
+
+    private static byte[] mac(String payload) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(KEY);
+            return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC not available", e);
+        }
+    }
+}
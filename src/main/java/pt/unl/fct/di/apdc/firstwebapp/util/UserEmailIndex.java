@@ -0,0 +1,144 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreReader;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyQuery;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Lookup entities of kind UserEmail, keyed by the normalized (trimmed, lower-case) email and
+ * holding the userID that owns it. They turn email resolution into a key get and make email
+ * uniqueness enforceable inside the same transaction that writes the User.
+ * Every write of a user's email must keep its UserEmail entity in step.
+ *
+ * Users created before the lookup existed get their entries from the BACKFILL migration; until it
+ * has run, owner() also queries the User kind by user_email.
+ */
+public class UserEmailIndex {
+
+    private static final Logger LOG = Logger.getLogger(UserEmailIndex.class.getName());
+
+    public static final String KIND_USER_EMAIL = "UserEmail";
+    public static final String BACKFILL = "user-email-index";
+    private static final String FIELD_USER_ID = "user_id";
+    private static final String KIND_USER = "User";
+    private static final String FIELD_EMAIL = "user_email";
+    private static final int BATCH_SIZE = 500; // Datastore limit of entities per commit
+
+    private UserEmailIndex() {}
+
+    public static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public static Key key(Datastore datastore, String email) {
+        return datastore.newKeyFactory().setKind(KIND_USER_EMAIL).newKey(normalize(email));
+    }
+
+    public static Entity entry(Datastore datastore, String email, String userID) {
+        return Entity.newBuilder(key(datastore, email))
+                .set(FIELD_USER_ID, userID)
+                .build();
+    }
+
+    /**
+     * @return The userID registered with this email, or null if there is no lookup entry for it.
+     */
+    public static String lookup(Datastore datastore, DatastoreReader reader, String email) {
+        Entity entry = reader.get(key(datastore, email));
+        return entry == null ? null : entry.getString(FIELD_USER_ID);
+    }
+
+    /**
+     * Like lookup(), but while the backfill has not run an email without an entry is also looked
+     * for in the user_email property of existing users, so no account goes unseen.
+     * @return The userID that owns this email, or null if none does.
+     */
+    public static String owner(Datastore datastore, DatastoreReader reader, String email) {
+        String owner = lookup(datastore, reader, email);
+        if (owner != null || DataMigrations.isDone(datastore, BACKFILL)) {
+            return owner;
+        }
+        KeyQuery query = Query.newKeyQueryBuilder()
+                .setKind(KIND_USER)
+                .setFilter(PropertyFilter.eq(FIELD_EMAIL, email))
+                .setLimit(1)
+                .build();
+        QueryResults<Key> results = reader.run(query);
+        return results.hasNext() ? results.next().getName() : null;
+    }
+
+    /**
+     * Creates the missing lookup entry of every existing user, BATCH_SIZE per transaction. Entries
+     * already present are left alone; when two legacy users share an email, the one read first
+     * keeps it and the other is logged.
+     */
+    public static void backfill(Datastore datastore) {
+        Query<ProjectionEntity> query = Query.newProjectionEntityQueryBuilder()
+                .setKind(KIND_USER)
+                .setProjection(FIELD_EMAIL)
+                .build();
+        QueryResults<ProjectionEntity> results = datastore.run(query);
+        Map<Key, String> batch = new LinkedHashMap<>();
+        long created = 0;
+        while (results.hasNext()) {
+            ProjectionEntity user = results.next();
+            String email = user.getString(FIELD_EMAIL);
+            Key emailKey = key(datastore, email);
+            if (batch.containsKey(emailKey)) {
+                LOG.warning("Email " + email + " of user " + user.getKey().getName() + " is already used by user " + batch.get(emailKey) + ".");
+                continue;
+            }
+            batch.put(emailKey, user.getKey().getName());
+            if (batch.size() == BATCH_SIZE) {
+                created += createMissing(datastore, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            created += createMissing(datastore, batch);
+        }
+        LOG.info("UserEmail backfill created " + created + " lookup entries.");
+    }
+
+    private static int createMissing(Datastore datastore, Map<Key, String> owners) {
+        List<Key> keys = new ArrayList<>(owners.keySet());
+        Transaction txn = datastore.newTransaction();
+        try {
+            List<Entity> existing = txn.fetch(keys.toArray(new Key[0]));
+            List<Entity> missing = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                String userID = owners.get(keys.get(i));
+                Entity entry = existing.get(i);
+                if (entry == null) {
+                    missing.add(Entity.newBuilder(keys.get(i)).set(FIELD_USER_ID, userID).build());
+                } else if (!userID.equals(entry.getString(FIELD_USER_ID))) {
+                    LOG.warning("Email " + keys.get(i).getName() + " of user " + userID + " is already used by user "
+                            + entry.getString(FIELD_USER_ID) + ".");
+                }
+            }
+            if (!missing.isEmpty()) {
+                txn.put(missing.toArray(new Entity[0]));
+            }
+            txn.commit();
+            return missing.size();
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+}
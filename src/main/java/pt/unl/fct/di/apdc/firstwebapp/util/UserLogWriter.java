@@ -0,0 +1,150 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous writer for UserLog audit records. When enabled (apdc.userlog.async), LoginResource
+ * hands the log entity to submit() after its transaction commits; a background thread drains the
+ * bounded queue and writes up to BATCH_SIZE records with one allocateId call and one put call.
+ * When the queue is full the record is dropped and counted, so a slow Datastore never blocks logins.
+ */
+public class UserLogWriter {
+
+    private static final Logger LOG = Logger.getLogger(UserLogWriter.class.getName());
+
+    private static final boolean ENABLED = AppConfig.getBoolean("apdc.userlog.async", false);
+    private static final int QUEUE_CAPACITY = AppConfig.getInt("apdc.userlog.queueCapacity", 10000);
+    private static final int BATCH_SIZE = 100;
+    private static final long POLL_TIMEOUT_MS = 1000;
+
+    private static final BlockingQueue<FullEntity<IncompleteKey>> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private static final AtomicLong SUBMITTED = new AtomicLong();
+    private static final AtomicLong WRITTEN = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final AtomicLong FAILED = new AtomicLong();
+    private static final AtomicLong BATCHES = new AtomicLong();
+
+    private static Thread worker;
+    private static volatile boolean running;
+
+    private UserLogWriter() {}
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Queues a log record without blocking. Returns false (and counts a drop) when the queue is full.
+     */
+    public static boolean submit(FullEntity<IncompleteKey> log) {
+        if (!QUEUE.offer(log)) {
+            DROPPED.incrementAndGet();
+            LOG.warning("UserLog queue full, dropping login record.");
+            return false;
+        }
+        SUBMITTED.incrementAndGet();
+        return true;
+    }
+
+    // Allocates the IDs of the whole batch in one RPC, then writes it with a single put
+    private static void writeBatch(Datastore datastore, List<FullEntity<IncompleteKey>> batch) {
+        try {
+            IncompleteKey[] incompleteKeys = new IncompleteKey[batch.size()];
+            for (int i = 0; i < incompleteKeys.length; i++) {
+                incompleteKeys[i] = batch.get(i).getKey();
+            }
+            List<Key> keys = datastore.allocateId(incompleteKeys);
+
+            Entity[] entities = new Entity[batch.size()];
+            for (int i = 0; i < entities.length; i++) {
+                entities[i] = Entity.newBuilder(keys.get(i), batch.get(i)).build();
+            }
+            datastore.put(entities);
+            WRITTEN.addAndGet(entities.length);
+            BATCHES.incrementAndGet();
+        } catch (Exception e) {
+            FAILED.addAndGet(batch.size());
+            LOG.log(Level.WARNING, "Failed to write " + batch.size() + " UserLog records.", e);
+        }
+    }
+
+    private static void drain(Datastore datastore) {
+        List<FullEntity<IncompleteKey>> batch = new ArrayList<>(BATCH_SIZE);
+        while (QUEUE.drainTo(batch, BATCH_SIZE) > 0) {
+            writeBatch(datastore, batch);
+            batch.clear();
+        }
+    }
+
+    private static void run(Datastore datastore) {
+        List<FullEntity<IncompleteKey>> batch = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                FullEntity<IncompleteKey> first = QUEUE.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                QUEUE.drainTo(batch, BATCH_SIZE - 1);
+                writeBatch(datastore, batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    public static synchronized void start(Datastore datastore) {
+        if (!ENABLED || worker != null) {
+            return;
+        }
+        running = true;
+        worker = new Thread(() -> run(datastore), "userlog-writer");
+        worker.setDaemon(true);
+        worker.start();
+        LOG.info("Asynchronous UserLog writer started (queue capacity " + QUEUE_CAPACITY + ").");
+    }
+
+    /**
+     * Stops the worker and writes whatever is still queued.
+     */
+    public static synchronized void stop(Datastore datastore) {
+        if (worker == null) {
+            return;
+        }
+        running = false;
+        try {
+            worker.join(POLL_TIMEOUT_MS * 5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+        drain(datastore);
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("enabled", ENABLED);
+        metrics.put("queued", QUEUE.size());
+        metrics.put("capacity", QUEUE_CAPACITY);
+        metrics.put("submitted", SUBMITTED.get());
+        metrics.put("written", WRITTEN.get());
+        metrics.put("dropped", DROPPED.get());
+        metrics.put("failed", FAILED.get());
+        metrics.put("batches", BATCHES.get());
+        return metrics;
+    }
+}
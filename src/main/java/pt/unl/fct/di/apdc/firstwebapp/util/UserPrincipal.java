@@ -0,0 +1,86 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.Entity;
+
+import java.security.Principal;
+
+/**
+ * The authenticated user behind a valid token, as resolved by AuthUtil.validateToken, with the
+ * token's creation date and verifier so a refresh can hand the whole token back without a read.
+ * Immutable, so it can be shared through the TokenCache.
+ */
+public class UserPrincipal implements Principal {
+
+    private static final String FIELD_ROLE = "user_role";
+    private static final String FIELD_STATE = "user_state";
+
+    private final String username;
+    private final String role;
+    private final String state;
+    private final String tokenID;
+    private final long creationDate;
+    private final long expirationDate;
+    private final String verifier; // Null for signed tokens, which carry none
+
+    public UserPrincipal(String username, String role, String state, String tokenID,
+                         long creationDate, long expirationDate, String verifier) {
+        this.username = username;
+        this.role = role;
+        this.state = state;
+        this.tokenID = tokenID;
+        this.creationDate = creationDate;
+        this.expirationDate = expirationDate;
+        this.verifier = verifier;
+    }
+
+    public static UserPrincipal fromUserEntity(Entity user, String tokenID, long creationDate, long expirationDate, String verifier) {
+        return new UserPrincipal(
+                user.getKey().getName(),
+                user.contains(FIELD_ROLE) ? user.getString(FIELD_ROLE) : "",
+                user.contains(FIELD_STATE) ? user.getString(FIELD_STATE) : "",
+                tokenID,
+                creationDate,
+                expirationDate,
+                verifier);
+    }
+
+    @Override
+    public String getName() {
+        return username;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getTokenID() {
+        return tokenID;
+    }
+
+    public long getCreationDate() {
+        return creationDate;
+    }
+
+    public long getExpirationDate() {
+        return expirationDate;
+    }
+
+    public String getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * @return The same session with a new expiry.
+     */
+    public UserPrincipal withExpirationDate(long newExpirationDate) {
+        return new UserPrincipal(username, role, state, tokenID, creationDate, newExpirationDate, verifier);
+    }
+}
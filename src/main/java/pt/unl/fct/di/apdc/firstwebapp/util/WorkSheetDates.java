@@ -0,0 +1,115 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.*;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Work sheet dates (adjudication_date, start_date, end_date) are stored as timestamps at midnight
+ * UTC and shown as YYYY-MM-DD. Work sheets adjudicated before the dates were typed hold them as
+ * strings, which no range query, /starting or /overdue can see; the MIGRATION rewrites them as
+ * timestamps. A string that is not a valid date is logged and left as it is.
+ */
+public class WorkSheetDates {
+
+    private static final Logger LOG = Logger.getLogger(WorkSheetDates.class.getName());
+
+    public static final String MIGRATION = "worksheet-date-timestamps";
+    public static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    private static final String KIND_WORKSHEET = "WorkSheet";
+    private static final String[] DATE_FIELDS = {"adjudication_date", "start_date", "end_date"};
+    private static final int BATCH_SIZE = 200;
+    private static final int ATTEMPTS = 3;
+
+    private WorkSheetDates() {}
+
+    public static Timestamp toTimestamp(LocalDate date) {
+        return Timestamp.ofTimeSecondsAndNanos(date.atStartOfDay(ZoneOffset.UTC).toEpochSecond(), 0);
+    }
+
+    public static String toDateString(Timestamp timestamp) {
+        return LocalDate.ofInstant(Instant.ofEpochSecond(timestamp.getSeconds()), ZoneOffset.UTC).format(DATE_FORMATTER);
+    }
+
+    /**
+     * Rewrites the string dates of every work sheet as timestamps, BATCH_SIZE work sheets per
+     * transaction. Other properties, stats_counted included, are kept. Safe to repeat.
+     */
+    public static void migrate(Datastore datastore) {
+        KeyQuery query = Query.newKeyQueryBuilder().setKind(KIND_WORKSHEET).build();
+        QueryResults<Key> results = datastore.run(query);
+        List<Key> batch = new ArrayList<>(BATCH_SIZE);
+        long rewritten = 0;
+        while (results.hasNext()) {
+            batch.add(results.next());
+            if (batch.size() == BATCH_SIZE) {
+                rewritten += migrateBatch(datastore, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            rewritten += migrateBatch(datastore, batch);
+        }
+        LOG.info("Work sheet date migration rewrote " + rewritten + " work sheets.");
+    }
+
+    // A batch that loses a race with a writer is retried; the writer's timestamps are then kept
+    private static int migrateBatch(Datastore datastore, List<Key> keys) {
+        for (int attempt = 1; ; attempt++) {
+            Transaction txn = datastore.newTransaction();
+            try {
+                List<Entity> rewritten = new ArrayList<>();
+                for (Entity workSheet : txn.fetch(keys.toArray(new Key[0]))) {
+                    Entity migrated = workSheet == null ? null : withTimestamps(workSheet);
+                    if (migrated != null) {
+                        rewritten.add(migrated);
+                    }
+                }
+                if (!rewritten.isEmpty()) {
+                    txn.put(rewritten.toArray(new Entity[0]));
+                }
+                txn.commit();
+                return rewritten.size();
+            } catch (DatastoreException e) {
+                if (attempt >= ATTEMPTS) {
+                    throw e;
+                }
+                LOG.fine("Work sheet date migration batch retried: " + e.getMessage());
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    // Returns the work sheet with its string dates as timestamps, or null if none was rewritten
+    private static Entity withTimestamps(Entity workSheet) {
+        Entity.Builder builder = null;
+        for (String field : DATE_FIELDS) {
+            if (!workSheet.contains(field) || !(workSheet.getValue(field) instanceof StringValue)) {
+                continue;
+            }
+            String value = workSheet.getString(field);
+            try {
+                LocalDate date = LocalDate.parse(value.trim(), DATE_FORMATTER);
+                if (builder == null) {
+                    builder = Entity.newBuilder(workSheet);
+                }
+                builder.set(field, toTimestamp(date));
+            } catch (DateTimeParseException e) {
+                LOG.warning("Work sheet " + workSheet.getKey().getName() + " has an invalid " + field + " '" + value + "'; left as it is.");
+            }
+        }
+        return builder == null ? null : builder.build();
+    }
+}
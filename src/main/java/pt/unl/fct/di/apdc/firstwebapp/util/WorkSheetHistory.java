@@ -0,0 +1,143 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.*;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only change log of work sheets. Every write to a work sheet also puts one WorkSheetEvent
+ * child entity in the same transaction, holding who made the change, when, and the new value of
+ * each field that changed (dates as timestamps). Event keys are named
+ * "&lt;zero-padded epoch millis&gt;-&lt;random&gt;", so an ancestor query in key order returns a
+ * work sheet's history chronologically from a single entity group. No event property is
+ * indexed. Observations longer than COMPRESS_THRESHOLD characters are stored gzip-compressed in
+ * a Blob.
+ */
+public class WorkSheetHistory {
+
+    public static final String KIND_EVENT = "WorkSheetEvent";
+
+    public static final String EVENT_CREATED = "CREATED";
+    public static final String EVENT_ADJUDICATED = "ADJUDICATED";
+    public static final String EVENT_WORK_STATUS = "WORK_STATUS";
+
+    private static final String FIELD_TYPE = "event_type";
+    private static final String FIELD_ACTOR = "event_actor";
+    private static final String FIELD_TIME = "event_time";
+    private static final String FIELD_OBSERVATIONS = "observations";
+    private static final String FIELD_OBSERVATIONS_GZ = "observations_gz";
+
+    // Work sheet fields recorded when they change, besides observations
+    private static final String[] TRACKED_FIELDS = {
+            "description", "target_type", "adjudication_status", "adjudication_date", "start_date", "end_date",
+            "partner_account", "adjudicating_entity", "entity_nif", "work_status"
+    };
+
+    private static final int COMPRESS_THRESHOLD = 512;
+
+    private WorkSheetHistory() {}
+
+    /**
+     * Builds the event for a work sheet going from {@code before} (null when created) to {@code after}.
+     * The caller puts it in the transaction that writes {@code after}.
+     */
+    public static Entity event(Datastore datastore, String type, String actor, Entity before, Entity after) {
+        long now = System.currentTimeMillis();
+        Key key = datastore.newKeyFactory()
+                .addAncestor(PathElement.of(after.getKey().getKind(), after.getKey().getName()))
+                .setKind(KIND_EVENT)
+                .newKey(String.format("%013d-%08x", now, ThreadLocalRandom.current().nextInt()));
+
+        Entity.Builder builder = Entity.newBuilder(key)
+                .set(FIELD_TYPE, unindexed(type))
+                .set(FIELD_ACTOR, unindexed(actor))
+                .set(FIELD_TIME, TimestampValue.newBuilder(Timestamp.ofTimeMicroseconds(now * 1000)).setExcludeFromIndexes(true).build());
+        for (String field : TRACKED_FIELDS) {
+            Value<?> value = valueOf(after, field);
+            Value<?> previous = valueOf(before, field);
+            if (value == null || (previous != null && value.get().equals(previous.get()))) {
+                continue;
+            }
+            if (value instanceof TimestampValue) {
+                builder.set(field, TimestampValue.newBuilder(((TimestampValue) value).get()).setExcludeFromIndexes(true).build());
+            } else {
+                builder.set(field, unindexed(String.valueOf(value.get())));
+            }
+        }
+        String observations = stringOf(after, FIELD_OBSERVATIONS);
+        if (observations != null && !observations.equals(stringOf(before, FIELD_OBSERVATIONS))) {
+            if (observations.length() > COMPRESS_THRESHOLD) {
+                builder.set(FIELD_OBSERVATIONS_GZ, BlobValue.newBuilder(Blob.copyFrom(gzip(observations))).setExcludeFromIndexes(true).build());
+            } else {
+                builder.set(FIELD_OBSERVATIONS, unindexed(observations));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return The query for a work sheet's events, oldest first.
+     */
+    public static EntityQuery historyQuery(Datastore datastore, Key workSheetKey) {
+        return Query.newEntityQueryBuilder()
+                .setKind(KIND_EVENT)
+                .setFilter(StructuredQuery.PropertyFilter.hasAncestor(workSheetKey))
+                .setOrderBy(StructuredQuery.OrderBy.asc("__key__"))
+                .build();
+    }
+
+    /**
+     * Writes one event as a JSON object, with compressed observations expanded.
+     */
+    public static void write(JsonWriter writer, Entity event) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(event.getKey().getName());
+        for (String name : event.getNames()) {
+            if (event.getValue(name) instanceof TimestampValue) {
+                writer.name(name).value(event.getTimestamp(name).toString());
+            } else if (FIELD_OBSERVATIONS_GZ.equals(name)) {
+                writer.name(FIELD_OBSERVATIONS).value(gunzip(event.getBlob(name).toByteArray()));
+            } else {
+                writer.name(name).value(event.getString(name));
+            }
+        }
+        writer.endObject();
+    }
+
+    private static StringValue unindexed(String value) {
+        return StringValue.newBuilder(value).setExcludeFromIndexes(true).build();
+    }
+
+    private static Value<?> valueOf(Entity entity, String field) {
+        return entity == null || !entity.contains(field) || entity.isNull(field) ? null : entity.getValue(field);
+    }
+
+    private static String stringOf(Entity entity, String field) {
+        return entity == null || !entity.contains(field) || entity.isNull(field) ? null : entity.getString(field);
+    }
+
+    private static byte[] gzip(String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() / 2);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String gunzip(byte[] data) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts of work sheets per adjudication_status, work_status and target_type, kept up to date by
+ * the transactions that write work sheets instead of by scanning the WorkSheet kind. The counts
+ * are spread over SHARDS entities and each transaction adds its changes to one shard picked at
+ * random, so concurrent writers rarely touch the same counter entity. Readers get an in-memory
+ * snapshot of the summed shards, reloaded every apdc.worksheetstats.refreshMs.
+ *
+ * A work sheet's values are in the counts only once it carries stats_counted, which every write
+ * sets (markCounted) in the transaction that adds its values; diff() treats an unflagged work sheet
+ * as new. Work sheets written before the counters existed are added by the RECOUNT migration, one
+ * batch per transaction that flags them, so each is counted exactly once whatever runs alongside.
+ * The counts are complete only once isComplete() is true.
+ */
+public class WorkSheetStats {
+
+    private static final Logger LOG = Logger.getLogger(WorkSheetStats.class.getName());
+
+    public static final String RECOUNT = "worksheet-stats-recount";
+
+    private static final String KIND_WORKSHEET = "WorkSheet";
+    private static final String KIND_SHARD = "WorkSheetStatsShard";
+    private static final String SHARD_PREFIX = "shard-";
+    private static final String FIELD_TOTAL = "total";
+    private static final String FIELD_COUNTED = "stats_counted";
+    private static final char SEPARATOR = ':';
+
+    // Work sheet properties that are counted per value
+    private static final String[] DIMENSIONS = {"adjudication_status", "work_status", "target_type"};
+
+    private static final int SHARDS = AppConfig.getInt("apdc.worksheetstats.shards", 20);
+    private static final long REFRESH_INTERVAL_MS = AppConfig.getLong("apdc.worksheetstats.refreshMs", 30 * 1000);
+    private static final int RECOUNT_BATCH = 200;
+    private static final int RECOUNT_ATTEMPTS = 3;
+
+    private static volatile Map<String, Object> snapshot;
+    private static ScheduledExecutorService scheduler;
+
+    private WorkSheetStats() {}
+
+    /**
+     * @return True once every work sheet is in the counts, and they can be served.
+     */
+    public static boolean isComplete(Datastore datastore) {
+        return DataMigrations.isDone(datastore, RECOUNT);
+    }
+
+    /**
+     * Flags the work sheet being built as counted. Every write that applies its diff must call it.
+     */
+    public static void markCounted(Entity.Builder builder) {
+        builder.set(FIELD_COUNTED, BooleanValue.newBuilder(true).setExcludeFromIndexes(true).build());
+    }
+
+    /**
+     * Adds to {@code deltas} the counter changes of one work sheet going from {@code before} to
+     * {@code after}; either may be null (created or removed). A {@code before} that is not flagged
+     * as counted contributed nothing, so it is treated as null.
+     */
+    public static void diff(Entity before, Entity after, Map<String, Long> deltas) {
+        if (before != null && !isCounted(before)) {
+            before = null;
+        }
+        if (before == null && after != null) {
+            deltas.merge(FIELD_TOTAL, 1L, Long::sum);
+        } else if (before != null && after == null) {
+            deltas.merge(FIELD_TOTAL, -1L, Long::sum);
+        }
+        for (String dimension : DIMENSIONS) {
+            String from = valueOf(before, dimension);
+            String to = valueOf(after, dimension);
+            if (from == null ? to == null : from.equals(to)) {
+                continue;
+            }
+            if (from != null) deltas.merge(dimension + SEPARATOR + from, -1L, Long::sum);
+            if (to != null) deltas.merge(dimension + SEPARATOR + to, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Adds the given changes to one random shard as part of {@code txn}, so the counts commit or
+     * roll back together with the work sheets they describe.
+     */
+    public static void apply(Datastore datastore, Transaction txn, Map<String, Long> deltas) {
+        deltas.values().removeIf(delta -> delta == 0);
+        if (deltas.isEmpty()) {
+            return;
+        }
+        Key shardKey = shardKey(datastore, ThreadLocalRandom.current().nextInt(SHARDS));
+        Entity shard = txn.get(shardKey);
+        Entity.Builder builder = shard == null ? Entity.newBuilder(shardKey) : Entity.newBuilder(shard);
+        for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+            long current = shard != null && shard.contains(delta.getKey()) ? shard.getLong(delta.getKey()) : 0L;
+            builder.set(delta.getKey(), LongValue.newBuilder(current + delta.getValue()).setExcludeFromIndexes(true).build());
+        }
+        txn.put(builder.build());
+    }
+
+    /**
+     * Shorthand for one work sheet written in {@code txn}.
+     */
+    public static void apply(Datastore datastore, Transaction txn, Entity before, Entity after) {
+        Map<String, Long> deltas = new HashMap<>();
+        diff(before, after, deltas);
+        apply(datastore, txn, deltas);
+    }
+
+    /**
+     * @return The latest snapshot: the total and one map of counts per dimension, plus the time it
+     * was read. Loaded on first use if the background refresh has not run yet.
+     */
+    public static Map<String, Object> snapshot(Datastore datastore) {
+        Map<String, Object> current = snapshot;
+        if (current == null) {
+            current = refresh(datastore);
+        }
+        return current;
+    }
+
+    /**
+     * Sums all shards, read together with one batched lookup, and swaps in the result.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> refresh(Datastore datastore) {
+        Key[] keys = new Key[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            keys[i] = shardKey(datastore, i);
+        }
+        List<Entity> shards = datastore.fetch(keys);
+
+        Map<String, Object> counts = new HashMap<>();
+        long total = 0;
+        for (String dimension : DIMENSIONS) {
+            counts.put(dimension, new HashMap<String, Long>());
+        }
+        for (Entity shard : shards) {
+            if (shard == null) {
+                continue;
+            }
+            for (String name : shard.getNames()) {
+                long value = shard.getLong(name);
+                if (FIELD_TOTAL.equals(name)) {
+                    total += value;
+                    continue;
+                }
+                int sep = name.indexOf(SEPARATOR);
+                Object perValue = sep < 0 ? null : counts.get(name.substring(0, sep));
+                if (perValue != null) {
+                    ((Map<String, Long>) perValue).merge(name.substring(sep + 1), value, Long::sum);
+                }
+            }
+        }
+        counts.put(FIELD_TOTAL, total);
+        counts.put("refreshedAt", System.currentTimeMillis());
+        snapshot = counts;
+        return counts;
+    }
+
+    /**
+     * Adds every work sheet not yet flagged as counted, RECOUNT_BATCH per transaction. Run once by
+     * DataMigrations; safe to repeat.
+     */
+    public static void recount(Datastore datastore) {
+        KeyQuery query = Query.newKeyQueryBuilder().setKind(KIND_WORKSHEET).build();
+        QueryResults<Key> results = datastore.run(query);
+        List<Key> batch = new ArrayList<>(RECOUNT_BATCH);
+        long counted = 0;
+        while (results.hasNext()) {
+            batch.add(results.next());
+            if (batch.size() == RECOUNT_BATCH) {
+                counted += countBatch(datastore, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            counted += countBatch(datastore, batch);
+        }
+        refresh(datastore);
+        LOG.info("Work sheet stats recount added " + counted + " work sheets.");
+    }
+
+    // Flags and counts the unflagged work sheets of one batch; a batch that loses a race with a writer is retried
+    private static int countBatch(Datastore datastore, List<Key> keys) {
+        for (int attempt = 1; ; attempt++) {
+            Transaction txn = datastore.newTransaction();
+            try {
+                Map<String, Long> deltas = new HashMap<>();
+                List<Entity> flagged = new ArrayList<>(keys.size());
+                for (Entity workSheet : txn.fetch(keys.toArray(new Key[0]))) {
+                    if (workSheet == null || isCounted(workSheet)) {
+                        continue;
+                    }
+                    Entity.Builder builder = Entity.newBuilder(workSheet);
+                    markCounted(builder);
+                    Entity counted = builder.build();
+                    diff(null, counted, deltas);
+                    flagged.add(counted);
+                }
+                if (!flagged.isEmpty()) {
+                    txn.put(flagged.toArray(new Entity[0]));
+                    apply(datastore, txn, deltas);
+                }
+                txn.commit();
+                return flagged.size();
+            } catch (DatastoreException e) {
+                if (attempt >= RECOUNT_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.fine("Work sheet stats recount batch retried: " + e.getMessage());
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    public static synchronized void start(Datastore datastore) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "worksheet-stats-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh(datastore);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Work sheet stats refresh failed.", e);
+            }
+        }, 0, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private static Key shardKey(Datastore datastore, int shard) {
+        return datastore.newKeyFactory().setKind(KIND_SHARD).newKey(SHARD_PREFIX + shard);
+    }
+
+    private static boolean isCounted(Entity workSheet) {
+        return workSheet.contains(FIELD_COUNTED) && workSheet.getBoolean(FIELD_COUNTED);
+    }
+
+    private static String valueOf(Entity workSheet, String field) {
+        return workSheet == null || !workSheet.contains(field) || workSheet.isNull(field) ? null : workSheet.getString(field);
+    }
+}
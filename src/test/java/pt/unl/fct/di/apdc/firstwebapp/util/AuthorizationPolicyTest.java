@@ -0,0 +1,221 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import org.junit.jupiter.api.Test;
+import pt.unl.fct.di.apdc.firstwebapp.util.AuthorizationPolicy.Action;
+
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks every AuthorizationPolicy table cell against the rules it replaced: the authorizeChange,
+ * authorizeStateChange and canTarget methods removed from the *Data classes (copied below as they
+ * were) and the role checks the resources made inline. Every name is tried upper- and lower-case.
+ */
+class AuthorizationPolicyTest {
+
+    private static final String[] ROLES = {"ENDUSER", "PARTNER", "BACKOFFICE", "ADMIN"};
+    private static final String[] STATES = {"ACTIVE", "INACTIVE", "SUSPENDED"};
+
+    @Test
+    void everyActionByActorRole() {
+        for (Action action : Action.values()) {
+            for (String actor : variants(ROLES)) {
+                assertEquals(expectedByActor(action, actor), AuthorizationPolicy.isAllowed(action, actor),
+                        action + " by " + actor);
+            }
+        }
+    }
+
+    @Test
+    void everyActionByActorAndTargetRole() {
+        for (Action action : Action.values()) {
+            for (String actor : variants(ROLES)) {
+                for (String target : variants(ROLES)) {
+                    boolean expected;
+                    switch (action) {
+                        case UPDATE_USER -> expected = legacyCanTarget(actor, target, false);
+                        case REMOVE_USER -> expected = legacyRemoveAuthorizeChange(actor, target);
+                        default -> expected = false; // Not decided by the target's role
+                    }
+                    assertEquals(expected, AuthorizationPolicy.isAllowed(action, actor, target, false),
+                            action + " by " + actor + " on " + target);
+                }
+            }
+        }
+    }
+
+    @Test
+    void selfShortCircuit() {
+        for (Action action : new Action[]{Action.UPDATE_USER, Action.REMOVE_USER}) {
+            for (String actor : variants(ROLES)) {
+                for (String target : variants(ROLES)) {
+                    assertEquals(legacyCanTarget(actor, target, true), AuthorizationPolicy.isAllowed(action, actor, target, true),
+                            action + " by " + actor + " on self as " + target);
+                }
+                // The target role is not consulted at all
+                assertTrue(AuthorizationPolicy.isAllowed(action, actor, null, true), action + " by " + actor + " on self");
+                assertTrue(AuthorizationPolicy.isAllowed(action, actor, "UNKNOWN", true), action + " by " + actor + " on self");
+            }
+            // An unknown actor gets nothing, not even on itself
+            assertFalse(AuthorizationPolicy.isAllowed(action, "UNKNOWN", "ENDUSER", true));
+            assertFalse(AuthorizationPolicy.isAllowed(action, null, "ENDUSER", true));
+        }
+    }
+
+    @Test
+    void everyRoleTransition() {
+        for (String actor : variants(ROLES)) {
+            for (String target : variants(ROLES)) {
+                for (String newRole : variants(ROLES)) {
+                    assertEquals(legacyAuthorizeRoleChange(actor, target, newRole),
+                            AuthorizationPolicy.canChangeRole(actor, target, newRole),
+                            actor + " changing " + target + " to " + newRole);
+                }
+            }
+        }
+    }
+
+    @Test
+    void everyStateTransition() {
+        for (String actor : variants(ROLES)) {
+            for (String from : variants(STATES)) {
+                for (String to : variants(STATES)) {
+                    assertEquals(legacyAuthorizeStateChange(actor, from, to),
+                            AuthorizationPolicy.canChangeState(actor, from, to),
+                            actor + " changing " + from + " to " + to);
+                }
+            }
+        }
+    }
+
+    // The old checks let ADMIN through for any target role or state name; the policy only knows the declared ones
+    @Test
+    void unknownNamesAreDenied() {
+        for (String unknown : new String[]{null, "", "UNKNOWN"}) {
+            for (Action action : Action.values()) {
+                assertFalse(AuthorizationPolicy.isAllowed(action, unknown));
+                assertFalse(AuthorizationPolicy.isAllowed(action, unknown, "ENDUSER", false));
+                assertFalse(AuthorizationPolicy.isAllowed(action, "ADMIN", unknown, false));
+            }
+            assertFalse(AuthorizationPolicy.canChangeRole(unknown, "ENDUSER", "PARTNER"));
+            assertFalse(AuthorizationPolicy.canChangeRole("ADMIN", unknown, "PARTNER"));
+            assertFalse(AuthorizationPolicy.canChangeRole("ADMIN", "ENDUSER", unknown));
+            assertFalse(AuthorizationPolicy.canChangeState(unknown, "ACTIVE", "INACTIVE"));
+            assertFalse(AuthorizationPolicy.canChangeState("ADMIN", unknown, "INACTIVE"));
+            assertFalse(AuthorizationPolicy.canChangeState("ADMIN", "ACTIVE", unknown));
+        }
+    }
+
+    private static String[] variants(String[] names) {
+        String[] all = new String[names.length * 2];
+        for (int i = 0; i < names.length; i++) {
+            all[2 * i] = names[i];
+            all[2 * i + 1] = names[i].toLowerCase(Locale.ROOT);
+        }
+        return all;
+    }
+
+    // Role-only rules, as the resources checked them before the policy existed. The work sheet checks
+    // compared exact upper-case names; stored roles are always upper-case, and the policy ignores case.
+    private static boolean expectedByActor(Action action, String actorRole) {
+        String role = actorRole.toUpperCase(Locale.ROOT);
+        return switch (action) {
+            // ListUsersResource.isListingRole
+            case LIST_USERS -> role.equals("ENDUSER") || role.equals("BACKOFFICE") || role.equals("ADMIN");
+            // ListUsersResource.exportUsers
+            case EXPORT_USERS -> role.equals("ADMIN") || role.equals("BACKOFFICE");
+            // MetricsResource: securityContext.isUserInRole("ADMIN")
+            case READ_METRICS -> role.equals("ADMIN");
+            // UpdateUserResource: inactive targets only for ADMIN
+            case UPDATE_INACTIVE_USER -> role.equals("ADMIN");
+            // CreateWorkSheetResource create and adjudication
+            case CREATE_WORKSHEET, ADJUDICATE_WORKSHEET -> role.equals("BACKOFFICE") || role.equals("ADMIN");
+            // CreateWorkSheetResource work status
+            case UPDATE_WORK_STATUS -> role.equals("PARTNER");
+            // Added after the policy: PARTNER lists its own work sheets only
+            case LIST_WORKSHEETS -> role.equals("PARTNER") || role.equals("BACKOFFICE") || role.equals("ADMIN");
+            case READ_WORKSHEET_STATS, READ_WORKSHEET_HISTORY, SEARCH_BY_LOCATION ->
+                    role.equals("BACKOFFICE") || role.equals("ADMIN");
+            // A PARTNER reads the inbox of work sheets adjudicated to them
+            case READ_PARTNER_INBOX -> role.equals("PARTNER");
+            // ... and the history of those work sheets only
+            case READ_OWN_WORKSHEET_HISTORY -> role.equals("PARTNER");
+            // Decided with a target (isAllowed with four arguments, canChangeRole, canChangeState)
+            case UPDATE_USER, REMOVE_USER, CHANGE_ROLE, CHANGE_STATE -> false;
+        };
+    }
+
+    // UpdateUserData.canTarget, as removed
+    private static boolean legacyCanTarget(String requesterRole, String targetRole, boolean isSelfModification) {
+        String requesterRoleUpper = requesterRole.toUpperCase();
+        String targetRoleUpper = targetRole.toUpperCase();
+
+        if (isSelfModification) {
+            return requesterRoleUpper.equals("ENDUSER") || requesterRoleUpper.equals("PARTNER") || requesterRoleUpper.equals("BACKOFFICE") || requesterRoleUpper.equals("ADMIN");
+        } else {
+            return switch (requesterRoleUpper) {
+                case "ADMIN" -> true;
+                case "BACKOFFICE" -> targetRoleUpper.equals("ENDUSER") || targetRoleUpper.equals("PARTNER");
+                default -> false;
+            };
+        }
+    }
+
+    // RemoveData.authorizeChange, as removed
+    private static boolean legacyRemoveAuthorizeChange(String userRole, String targetRole) {
+        if (userRole == null || targetRole == null) {
+            return false;
+        }
+        String userRoleUpper = userRole.toUpperCase();
+        String targetRoleUpper = targetRole.toUpperCase();
+        if (userRoleUpper.equals("ADMIN")) {
+            return true;
+        }
+        if (userRoleUpper.equals("BACKOFFICE")) {
+            return targetRoleUpper.equals("ENDUSER") || targetRoleUpper.equals("PARTNER");
+        }
+        return false;
+    }
+
+    // ChangeRoleData.authorizeChange, as removed (newRole was a field, validated by isValidRole)
+    private static boolean legacyAuthorizeRoleChange(String userOneRole, String userTwoRole, String newRole) {
+        boolean validNewRole = newRole != null && Set.of(ROLES).contains(newRole.toUpperCase());
+        if (userOneRole == null || userTwoRole == null || !validNewRole) {
+            return false;
+        }
+        String u1RoleUpper = userOneRole.toUpperCase();
+        String u2RoleUpper = userTwoRole.toUpperCase();
+        String newRoleUpper = newRole.toUpperCase();
+        if (u1RoleUpper.equals("ADMIN")) {
+            return true;
+        }
+        if (u1RoleUpper.equals("BACKOFFICE")) {
+            boolean isEndUserToPartner = u2RoleUpper.equals("ENDUSER") && newRoleUpper.equals("PARTNER");
+            boolean isPartnerToEndUser = u2RoleUpper.equals("PARTNER") && newRoleUpper.equals("ENDUSER");
+            return isEndUserToPartner || isPartnerToEndUser;
+        }
+        return false;
+    }
+
+    // ChangeStateData.authorizeStateChange, as removed (newState was a field)
+    private static boolean legacyAuthorizeStateChange(String userOneRole, String currentUserState, String newState) {
+        if (userOneRole == null || currentUserState == null || newState == null) {
+            return false;
+        }
+        String u1RoleUpper = userOneRole.toUpperCase();
+        String currentStateUpper = currentUserState.toUpperCase();
+        String newStateUpper = newState.toUpperCase();
+        if (u1RoleUpper.equals("ADMIN")) {
+            return true;
+        }
+        if (u1RoleUpper.equals("BACKOFFICE")) {
+            return (currentStateUpper.equals("INACTIVE") && newStateUpper.equals("ACTIVE")) ||
+                    (currentStateUpper.equals("ACTIVE") && newStateUpper.equals("INACTIVE"));
+        }
+        return false;
+    }
+}
